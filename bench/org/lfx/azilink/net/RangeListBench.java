@@ -0,0 +1,134 @@
+/* AziLink: USB tethering for Android
+ * Copyright (C) 2009 by James Perry
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.lfx.azilink.net;
+
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * Micro-benchmark comparing RangeList against the BitSet that TcpDriverImpl used to track received
+ * data.  Segments arrive in a 256 KB window with one in 50 delivered late, the contiguous length is
+ * checked after every segment, and 16 KB is drained whenever it is available, the way read() does.
+ * 
+ * This lives outside src/ so it never ends up in the APK.  To run it from the project root:
+ * <pre>
+ * javac -d /tmp/bench src/org/lfx/azilink/net/RangeList.java bench/org/lfx/azilink/net/RangeListBench.java
+ * java -cp /tmp/bench org.lfx.azilink.net.RangeListBench
+ * </pre>
+ * 
+ * @author Jim Perry
+ *
+ */
+public class RangeListBench {
+	/** Receive window in bytes */
+	static final int WINDOW = 256 * 1024;
+	/** Segment size in bytes */
+	static final int SEGMENT = 1460;
+	/** Bytes drained per read */
+	static final int READ = 16384;
+	/** Segments per timed run */
+	static final int ROUNDS = 2000000;
+	
+	/**
+	 * Run the workload against a BitSet, copying it on every drain as TcpDriverImpl did.
+	 * @param seed seed for the late segments
+	 * @return sum of the contiguous lengths seen, to check both versions agree
+	 */
+	static long runBitSet( long seed ) {
+		Random rand = new Random( seed );
+		BitSet valid = new BitSet( WINDOW );
+		long sum = 0;
+		int next = 0;
+		int late = -1;
+		for( int k = 0 ; k < ROUNDS ; k++ ) {
+			if( next + SEGMENT <= WINDOW ) {
+				if( late < 0 && rand.nextInt( 50 ) == 0 ) {
+					late = next;
+				} else {
+					valid.set( next, next + SEGMENT );
+					if( late >= 0 && rand.nextInt( 4 ) == 0 ) {
+						valid.set( late, late + SEGMENT );
+						late = -1;
+					}
+				}
+				next += SEGMENT;
+			}
+			int len = valid.nextClearBit( 0 );
+			sum += len;
+			if( len >= READ ) {
+				valid = valid.get( READ, valid.size() + READ );
+				next -= READ;
+				if( late >= 0 ) late -= READ;
+			}
+		}
+		return sum;
+	}
+	
+	/**
+	 * Run the same workload against a RangeList.
+	 * @param seed seed for the late segments
+	 * @return sum of the contiguous lengths seen
+	 */
+	static long runRangeList( long seed ) {
+		Random rand = new Random( seed );
+		RangeList valid = new RangeList();
+		long sum = 0;
+		int next = 0;
+		int late = -1;
+		for( int k = 0 ; k < ROUNDS ; k++ ) {
+			if( next + SEGMENT <= WINDOW ) {
+				if( late < 0 && rand.nextInt( 50 ) == 0 ) {
+					late = next;
+				} else {
+					valid.add( next, next + SEGMENT );
+					if( late >= 0 && rand.nextInt( 4 ) == 0 ) {
+						valid.add( late, late + SEGMENT );
+						late = -1;
+					}
+				}
+				next += SEGMENT;
+			}
+			int len = valid.getContiguous();
+			sum += len;
+			if( len >= READ ) {
+				valid.consume( READ );
+				next -= READ;
+				if( late >= 0 ) late -= READ;
+			}
+		}
+		return sum;
+	}
+	
+	public static void main( String[] args ) {
+		// Warm up the JIT before timing anything
+		for( int i = 0 ; i < 3 ; i++ ) {
+			runBitSet( 1 );
+			runRangeList( 1 );
+		}
+		
+		long t0 = System.nanoTime();
+		long bitSum = runBitSet( 7 );
+		long t1 = System.nanoTime();
+		long rangeSum = runRangeList( 7 );
+		long t2 = System.nanoTime();
+		
+		System.out.println( "results match: " + (bitSum == rangeSum) );
+		System.out.println( "BitSet:    " + (t1 - t0) / ROUNDS + " ns/segment" );
+		System.out.println( "RangeList: " + (t2 - t1) / ROUNDS + " ns/segment" );
+	}
+}
@@ -81,6 +81,26 @@ public class ForwardService extends Service implements VpnNatEngineNotify {
 		mEngine.setTMobileWorkaround(pref.getBoolean(getString(R.string.pref_key_tmobile),false));
 		mEngine.setTMobileWorkaroundTimeout(Integer.parseInt(pref.getString(getString(R.string.pref_key_tmobile_ms),"1000")));
 		mEngine.setPinger(pref.getBoolean(getString(R.string.pref_key_ping),true));
+		mEngine.setCubic(pref.getBoolean(getString(R.string.pref_key_cubic),true));
+		mEngine.setPacing(pref.getBoolean(getString(R.string.pref_key_pacing),false));
+		mEngine.setDnsCache(pref.getBoolean(getString(R.string.pref_key_dns_cache),true));
+		mEngine.setDnsServer(pref.getString(getString(R.string.pref_key_dns_server),"").trim());
+		try {
+			mEngine.setWorkerCount(Integer.parseInt(pref.getString(getString(R.string.pref_key_workers),"1")));
+		} catch (NumberFormatException e) {
+		}
+		try {
+			mEngine.setTunMtu(Integer.parseInt(pref.getString(getString(R.string.pref_key_mtu),"1500")));
+		} catch (NumberFormatException e) {
+		}
+		try {
+			mEngine.setTcpWindow(Integer.parseInt(pref.getString(getString(R.string.pref_key_tcp_window),"256")));
+		} catch (NumberFormatException e) {
+		}
+		try {
+			mEngine.setBufferBudget(Integer.parseInt(pref.getString(getString(R.string.pref_key_buffer_budget),"16")));
+		} catch (NumberFormatException e) {
+		}
 		try {
 			mEngine.start();
 		} catch (IOException e) {
@@ -228,6 +248,19 @@ public class ForwardService extends Service implements VpnNatEngineNotify {
 			ls.mBytesTotal = ls.mBytesRecv + ls.mBytesSent;
 			ls.mTcpConnections = mEngine.getTcpSize();
 			ls.mUdpConnections = mEngine.getUdpSize();
+			ls.mFlowProbes = mEngine.getFlowProbes();
+			ls.mPoolHits = mEngine.getPoolHits();
+			ls.mPoolMisses = mEngine.getPoolMisses();
+			ls.mTcpRetransmitted = mEngine.getTcpRetransmitted();
+			ls.mTcpRttMin = mEngine.getTcpRttMin();
+			ls.mTcpRttAvg = mEngine.getTcpRttAvg();
+			ls.mVpnDropped = mEngine.getVpnDropped();
+			ls.mBufferMemory = mEngine.getBufferMemory();
+			ls.mBufferPooled = mEngine.getBufferPooled();
+			ls.mThrottledFlows = mEngine.getThrottledFlows();
+			ls.mDnsHits = mEngine.getDnsHits();
+			ls.mDnsMisses = mEngine.getDnsMisses();
+			ls.mDnsSaved = mEngine.getDnsSaved();
 			if( mActive ) {
 				ls.mStatus = getString(R.string.status_active);
 			} else {
@@ -33,6 +33,19 @@ public final class LinkStatistics implements Parcelable {
 	public long mBytesTotal = 0;
 	public long mTcpConnections = 0;
 	public long mUdpConnections = 0;
+	public long mPoolHits = 0;
+	public long mPoolMisses = 0;
+	public long mTcpRetransmitted = 0;
+	public long mBufferMemory = 0;
+	public long mBufferPooled = 0;
+	public long mThrottledFlows = 0;
+	public long mDnsHits = 0;
+	public long mDnsMisses = 0;
+	public long mDnsSaved = 0;
+	public double mFlowProbes = 0;
+	public long mVpnDropped = 0;
+	public long mTcpRttMin = -1;
+	public long mTcpRttAvg = -1;
 	public String mStatus = "";
 
 	public int describeContents() {
@@ -57,6 +70,19 @@ public final class LinkStatistics implements Parcelable {
 		mBytesTotal = in.readLong();
 		mTcpConnections = in.readLong();
 		mUdpConnections = in.readLong();
+		mPoolHits = in.readLong();
+		mPoolMisses = in.readLong();
+		mTcpRetransmitted = in.readLong();
+		mBufferMemory = in.readLong();
+		mBufferPooled = in.readLong();
+		mThrottledFlows = in.readLong();
+		mDnsHits = in.readLong();
+		mDnsMisses = in.readLong();
+		mDnsSaved = in.readLong();
+		mFlowProbes = in.readDouble();
+		mVpnDropped = in.readLong();
+		mTcpRttMin = in.readLong();
+		mTcpRttAvg = in.readLong();
 		mStatus = in.readString();
 	}
 
@@ -69,6 +95,19 @@ public final class LinkStatistics implements Parcelable {
 		out.writeLong(mBytesTotal);
 		out.writeLong(mTcpConnections);
 		out.writeLong(mUdpConnections);
+		out.writeLong(mPoolHits);
+		out.writeLong(mPoolMisses);
+		out.writeLong(mTcpRetransmitted);
+		out.writeLong(mBufferMemory);
+		out.writeLong(mBufferPooled);
+		out.writeLong(mThrottledFlows);
+		out.writeLong(mDnsHits);
+		out.writeLong(mDnsMisses);
+		out.writeLong(mDnsSaved);
+		out.writeDouble(mFlowProbes);
+		out.writeLong(mVpnDropped);
+		out.writeLong(mTcpRttMin);
+		out.writeLong(mTcpRttAvg);
 		out.writeString(mStatus);
 	}
 
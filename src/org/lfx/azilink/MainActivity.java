@@ -57,6 +57,8 @@ public class MainActivity extends PreferenceActivity {
 	private Preference mTcpConnections;
 	/** # of entries in the NAT table */
 	private Preference mNatSize;
+	/** Min/mean round trip time of closed TCP connections */
+	private Preference mTcpRtt;
 	/** Timeout for the T-Mobile workaround (ms). */
 	private EditTextPreference mTM;
 	/** Formatting for all the byte counters */
@@ -87,6 +89,7 @@ public class MainActivity extends PreferenceActivity {
 		mBytesTotal 	= findPreference(getString(R.string.pref_key_bytestotal));
 		mTcpConnections = findPreference(getString(R.string.pref_key_tcpconn));
 		mNatSize 		= findPreference(getString(R.string.pref_key_natsize));
+		mTcpRtt 		= findPreference(getString(R.string.pref_key_tcprtt));
 		mTM = (EditTextPreference) findPreference(getString(R.string.pref_key_tmobile_ms));
 				
 		// Activate/deactivate service
@@ -245,6 +248,11 @@ public class MainActivity extends PreferenceActivity {
 			mBytesTotal.setSummary(mFormat.format(ls.mBytesRecv + ls.mBytesSent));
 			mTcpConnections.setSummary(mFormat.format(ls.mTcpConnections));
 			mNatSize.setSummary(mFormat.format(ls.mTcpConnections + ls.mUdpConnections));
+			if( ls.mTcpRttAvg < 0 ) {
+				mTcpRtt.setSummary(getString(R.string.tcprtt_none));
+			} else {
+				mTcpRtt.setSummary(getString(R.string.tcprtt_format, ls.mTcpRttMin, ls.mTcpRttAvg));
+			}
 			
 			if(mService != null) {
 				mHandler.removeCallbacks(this);
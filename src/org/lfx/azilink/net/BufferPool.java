@@ -0,0 +1,136 @@
+/* AziLink: USB tethering for Android
+ * Copyright (C) 2009 by James Perry
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.lfx.azilink.net;
+
+/**
+ * Free lists of stream buffers for the TCP send and receive queues.  Connections only hold a buffer
+ * while they have data queued, and give it back once it drains, so idle connections cost almost
+ * nothing.  Sizes are rounded up to a power of two so buffers can be traded between connections.
+ * 
+ * Shared by all shards, so every method is synchronized.
+ * 
+ * @author Jim Perry
+ *
+ */
+public class BufferPool {
+	/** Buffers for TcpDriverImpl */
+	static final BufferPool sStream = new BufferPool( 1024 * 1024 );
+	
+	/** log2 of the smallest buffer handed out */
+	static final int sMinShift = 12;
+	/** log2 of the largest buffer kept on a free list */
+	static final int sMaxShift = 24;
+	
+	/** Free buffers for each size class (index is log2(size) - sMinShift) */
+	private byte[][][] mFree = new byte[ sMaxShift - sMinShift + 1 ][][];
+	/** Number of entries in each mFree list */
+	private int[] mCount = new int[ sMaxShift - sMinShift + 1 ];
+	/** Most bytes to keep on the free lists (extras are left to the garbage collector) */
+	private final long mMaxPooled;
+	/** Bytes currently lent out */
+	private long mInUse = 0;
+	/** Bytes sitting on the free lists */
+	private long mPooled = 0;
+	/** Number of buffers currently lent out (read without locking) */
+	private volatile int mLent = 0;
+	
+	/**
+	 * Build an empty pool.
+	 * @param maxPooled most bytes to keep on the free lists
+	 */
+	BufferPool( long maxPooled ) {
+		mMaxPooled = maxPooled;
+	}
+	
+	/**
+	 * Pick the size class for a request.
+	 * @param size bytes needed
+	 * @return log2 of the buffer size that will be handed out
+	 */
+	private static int shiftFor( int size ) {
+		int shift = sMinShift;
+		while( (1 << shift) < size ) shift++;
+		return shift;
+	}
+	
+	/**
+	 * Borrow a buffer.  Contents are undefined.
+	 * @param size bytes needed
+	 * @return buffer of at least size bytes (rounded up to a power of two)
+	 */
+	synchronized byte[] get( int size ) {
+		int shift = shiftFor( size );
+		byte[] b;
+		int c = shift - sMinShift;
+		if( shift <= sMaxShift && mCount[ c ] != 0 ) {
+			b = mFree[ c ][ --mCount[ c ] ];
+			mFree[ c ][ mCount[ c ] ] = null;
+			mPooled -= b.length;
+		} else {
+			b = new byte[ 1 << shift ];
+		}
+		mInUse += b.length;
+		mLent++;
+		return b;
+	}
+	
+	/**
+	 * Return a buffer to the pool.
+	 * @param b buffer from get() (must not be used afterwards)
+	 */
+	synchronized void release( byte[] b ) {
+		mInUse -= b.length;
+		mLent--;
+		int shift = shiftFor( b.length );
+		if( shift > sMaxShift || (1 << shift) != b.length || mPooled + b.length > mMaxPooled ) return;
+		int c = shift - sMinShift;
+		byte[][] list = mFree[ c ];
+		if( list == null || mCount[ c ] == list.length ) {
+			byte[][] n = new byte[ list == null ? 4 : list.length * 2 ][];
+			if( list != null ) System.arraycopy( list, 0, n, 0, list.length );
+			mFree[ c ] = list = n;
+		}
+		list[ mCount[ c ]++ ] = b;
+		mPooled += b.length;
+	}
+	
+	/**
+	 * Get the number of bytes held by connections.
+	 * @return bytes in use
+	 */
+	synchronized long getInUse() {
+		return mInUse;
+	}
+	
+	/**
+	 * Get the number of buffers held by connections.
+	 * @return buffers in use
+	 */
+	int getLent() {
+		return mLent;
+	}
+	
+	/**
+	 * Get the number of bytes waiting on the free lists.
+	 * @return bytes pooled
+	 */
+	synchronized long getPooled() {
+		return mPooled;
+	}
+}
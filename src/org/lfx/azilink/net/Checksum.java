@@ -0,0 +1,98 @@
+/* AziLink: USB tethering for Android
+ * Copyright (C) 2009 by James Perry
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.lfx.azilink.net;
+
+/**
+ * Internet checksum helpers shared by the packet classes.
+ * 
+ * sum() adds 32 bits at a time into a long and only folds at the end, which is the same
+ * ones-complement result as adding 16 bit words but with half the additions and no
+ * per-word carry handling.  update() applies RFC 1624 (eqn. 3) so that changing a header
+ * field costs a few operations instead of a pass over the whole packet.
+ * 
+ * @author Jim Perry
+ *
+ */
+final class Checksum {
+	private Checksum() {}
+	
+	/**
+	 * Add a run of bytes to a checksum accumulator.  The run is treated as big endian
+	 * 16 bit words starting at off; an odd final byte is padded with zero.
+	 * 
+	 * @param b buffer
+	 * @param off first byte
+	 * @param len number of bytes
+	 * @param sum accumulator to add to (0 to start)
+	 * @return new accumulator (unfolded)
+	 */
+	static long sum( byte[] b, int off, int len, long sum ) {
+		int end = off + len;
+		while( end - off >= 8 ) {
+			sum += (((b[off]&0xFF) << 24) | ((b[off+1]&0xFF) << 16) | ((b[off+2]&0xFF) << 8) | (b[off+3]&0xFF)) & 0xFFFFFFFFL;
+			sum += (((b[off+4]&0xFF) << 24) | ((b[off+5]&0xFF) << 16) | ((b[off+6]&0xFF) << 8) | (b[off+7]&0xFF)) & 0xFFFFFFFFL;
+			off += 8;
+		}
+		while( end - off >= 2 ) {
+			sum += ((b[off]&0xFF) << 8) | (b[off+1]&0xFF);
+			off += 2;
+		}
+		if( off < end ) {
+			sum += (b[off]&0xFF) << 8;
+		}
+		return sum;
+	}
+	
+	/**
+	 * Fold an accumulator down to 16 bits and complement it, giving the value to store in the header.
+	 * @param sum accumulator from sum()
+	 * @return checksum
+	 */
+	static int finish( long sum ) {
+		while( (sum >>> 16) != 0 ) {
+			sum = (sum & 0xFFFF) + (sum >>> 16);
+		}
+		return ~((int) sum) & 0xFFFF;
+	}
+	
+	/**
+	 * Fix up a checksum after one 16 bit word of the covered data changed (RFC 1624).
+	 * @param check current checksum
+	 * @param oldWord previous value of the word
+	 * @param newWord new value of the word
+	 * @return new checksum
+	 */
+	static int update( int check, int oldWord, int newWord ) {
+		int sum = (~check & 0xFFFF) + (~oldWord & 0xFFFF) + (newWord & 0xFFFF);
+		sum = (sum & 0xFFFF) + (sum >>> 16);
+		sum = (sum & 0xFFFF) + (sum >>> 16);
+		return ~sum & 0xFFFF;
+	}
+	
+	/**
+	 * Fix up a checksum after a 32 bit value of the covered data changed.
+	 * @param check current checksum
+	 * @param oldValue previous value
+	 * @param newValue new value
+	 * @return new checksum
+	 */
+	static int update32( int check, int oldValue, int newValue ) {
+		check = update( check, oldValue >>> 16, newValue >>> 16 );
+		return update( check, oldValue & 0xFFFF, newValue & 0xFFFF );
+	}
+}
@@ -0,0 +1,59 @@
+/* AziLink: USB tethering for Android
+ * Copyright (C) 2009 by James Perry
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.lfx.azilink.net;
+
+/**
+ * Congestion window for one TCP connection's traffic toward the host.  TcpDriverImpl never has more
+ * new data outstanding than getWindow() allows; retransmissions aren't limited.
+ * 
+ * @author Jim Perry
+ *
+ */
+public interface CongestionControl {
+	/**
+	 * Set the segment size and the initial window.  Called once, before anything is sent.
+	 * @param mss segment size (bytes)
+	 */
+	void init( int mss );
+	
+	/**
+	 * Current congestion window.
+	 * @return window (bytes)
+	 */
+	int getWindow();
+	
+	/**
+	 * New data was acknowledged outside of loss recovery.
+	 * @param acked bytes acknowledged
+	 * @param now current time (elapsedRealtime ms)
+	 * @param rtt smoothed round trip time (ms), or -1 if unknown
+	 */
+	void onAck( int acked, long now, int rtt );
+	
+	/**
+	 * Loss detected by duplicate ACKs; fast recovery is starting.
+	 * @param inFlight bytes outstanding
+	 */
+	void onLoss( int inFlight );
+	
+	/**
+	 * The retransmit timer expired.
+	 * @param inFlight bytes outstanding
+	 */
+	void onTimeout( int inFlight );
+}
@@ -0,0 +1,122 @@
+/* AziLink: USB tethering for Android
+ * Copyright (C) 2009 by James Perry
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.lfx.azilink.net;
+
+/**
+ * CUBIC congestion control (RFC 9438).  After a loss the window grows along a cubic curve centred
+ * on the window where the loss happened, so it gets back there quickly and then probes slowly.
+ * Never grows slower than Reno would.
+ * 
+ * @author Jim Perry
+ *
+ */
+public class CubicCongestionControl implements CongestionControl {
+	/** Segment size (bytes) */
+	int mMss;
+	/** Congestion window (segments) */
+	double mCwnd;
+	/** Slow start threshold (segments) */
+	double mSsthresh = sMaxWindow;
+	/** Window just before the last reduction (segments) */
+	double mWmax = 0;
+	/** Window the current curve is centred on (segments) */
+	double mOrigin;
+	/** Time from the start of the epoch until the curve reaches mOrigin (s) */
+	double mK;
+	/** Start of the current congestion avoidance epoch (elapsedRealtime ms, -1 if none) */
+	long mEpochStart = -1;
+	/** Estimate of the window Reno would have (segments) */
+	double mRenoCwnd;
+	
+	/** Initial window in segments (RFC 6928) */
+	static final int sInitialSegments = 10;
+	/** Multiplicative decrease factor */
+	static final double sBeta = 0.7;
+	/** Scaling constant for the cubic curve */
+	static final double sC = 0.4;
+	/** Reno-equivalent additive increase per RTT for sBeta (segments) */
+	static final double sAlpha = 3 * (1 - sBeta) / (1 + sBeta);
+	/** Upper bound on the window (segments) */
+	static final double sMaxWindow = 1 << 20;
+	
+	public void init( int mss ) {
+		mMss = mss;
+		mCwnd = sInitialSegments;
+	}
+	
+	public int getWindow() {
+		return (int)(mCwnd * mMss);
+	}
+	
+	public void onAck( int acked, long now, int rtt ) {
+		double segs = (double) acked / mMss;
+		if( mCwnd < mSsthresh ) {
+			mCwnd = Math.min( mCwnd + Math.min( segs, 1 ), sMaxWindow );
+			return;
+		}
+		if( mEpochStart < 0 ) {
+			mEpochStart = now;
+			if( mCwnd < mWmax ) {
+				mK = Math.cbrt( (mWmax - mCwnd) / sC );
+				mOrigin = mWmax;
+			} else {
+				mK = 0;
+				mOrigin = mCwnd;
+			}
+			mRenoCwnd = mCwnd;
+		}
+		// Aim for where the curve will be one RTT from now
+		double t = (now - mEpochStart + Math.max( rtt, 0 )) / 1000.0 - mK;
+		double target = mOrigin + sC * t * t * t;
+		target = Math.max( mCwnd, Math.min( target, 1.5 * mCwnd ) );
+		
+		mRenoCwnd += sAlpha * segs / mCwnd;
+		if( mRenoCwnd > target ) {
+			mCwnd = mRenoCwnd;
+		} else {
+			mCwnd += (target - mCwnd) * segs / mCwnd;
+		}
+		mCwnd = Math.min( mCwnd, sMaxWindow );
+	}
+	
+	public void onLoss( int inFlight ) {
+		reduce( inFlight );
+		mCwnd = mSsthresh;
+	}
+	
+	public void onTimeout( int inFlight ) {
+		reduce( inFlight );
+		mCwnd = 1;
+	}
+	
+	/**
+	 * Remember where the loss happened and cut ssthresh.
+	 * @param inFlight bytes outstanding
+	 */
+	void reduce( int inFlight ) {
+		double flight = Math.max( (double) inFlight / mMss, 1 );
+		// Fast convergence: if the window stopped short of the last peak, release bandwidth sooner
+		if( mCwnd < mWmax ) {
+			mWmax = mCwnd * (1 + sBeta) / 2;
+		} else {
+			mWmax = mCwnd;
+		}
+		mSsthresh = Math.max( Math.min( mCwnd, flight ) * sBeta, 2 );
+		mEpochStart = -1;
+	}
+}
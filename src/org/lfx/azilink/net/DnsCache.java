@@ -0,0 +1,284 @@
+/* AziLink: USB tethering for Android
+ * Copyright (C) 2009 by James Perry
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.lfx.azilink.net;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of DNS answers, shared by every shard's DnsMux.  Answers are keyed by the question
+ * (lowercased name, type and class) plus the query's EDNS options that change what the answer
+ * holds (whether it has an OPT record, and the DO and CD bits), and kept until the shortest TTL in them runs out; the
+ * least recently used answer is dropped when the cache is full.  A cached answer is served
+ * with the caller's transaction id and with its TTLs counted down by the time it has been held.
+ * 
+ * Only plain answers that fit in a 512 byte DNS message are cached (no truncated answers,
+ * nothing but NOERROR and NXDOMAIN), so they're safe to hand back to any resolver.
+ * 
+ * @author Jim Perry
+ *
+ */
+public class DnsCache {
+	/** Most answers to keep */
+	static final int sMaxEntries = 512;
+	/** Largest message that's cached (the classic UDP DNS limit) */
+	static final int sMaxLength = 512;
+	/** Longest time an answer is kept no matter what its TTLs say (s) */
+	static final int sMaxTtl = 3600;
+	/** Length of the DNS header */
+	static final int sHeaderLength = 12;
+	
+	/**
+	 * A single cached answer
+	 */
+	static final class Entry {
+		/** The answer, as received */
+		byte[] mData;
+		/** Offsets of every TTL field in mData, and the TTLs they held */
+		int[] mTtlOffsets;
+		int[] mTtls;
+		/** When the answer was stored, and when it goes stale (elapsedRealtime ms) */
+		long mStored;
+		long mExpires;
+		/** Round trip it took to get the answer from upstream (ms) */
+		int mRtt;
+	}
+	
+	/** Answers in least to most recently used order */
+	@SuppressWarnings("serial")
+	LinkedHashMap< String, Entry > mCache = new LinkedHashMap<String, Entry>( 64, 0.75f, true ) {
+		@Override protected boolean removeEldestEntry( Map.Entry<String, Entry> eldest ) {
+			return size() > sMaxEntries;
+		}
+	};
+	/** Queries answered from the cache */
+	long mHits;
+	/** Cacheable queries that had to go upstream */
+	long mMisses;
+	/** Upstream round trips saved by hits (ms) */
+	long mSaved;
+	
+	/** Flags in the last character of a key */
+	static final int sKeyEdns = 1, sKeyDo = 2, sKeyCd = 4;
+	
+	/**
+	 * Build the cache key for a DNS message: the question section, lowercased, followed by one
+	 * character of EDNS flags.  Only standard queries (or answers) with a single uncompressed
+	 * question have a key.
+	 * @param d buffer holding the message
+	 * @param off offset of the message within d
+	 * @param len message length
+	 * @return key, or null if the message can't be cached
+	 */
+	static String getKey( byte[] d, int off, int len ) {
+		if( len < sHeaderLength ) return null;
+		if( ((d[off+2] >> 3) & 0x0F) != 0 ) return null;		// opcode isn't QUERY
+		if( getShort( d, off+4 ) != 1 ) return null;		// qdcount
+		int end = skipName( d, off+sHeaderLength, off+len, false );
+		if( end < 0 || end + 4 > off+len ) return null;
+		end += 4;		// qtype, qclass
+		
+		int flags = (d[off+3] & 0x10) != 0 ? sKeyCd : 0;
+		int records = getShort( d, off+6 ) + getShort( d, off+8 ) + getShort( d, off+10 );
+		int p = end;
+		for( int i=0 ; i < records ; i++ ) {
+			p = skipName( d, p, off+len, true );
+			if( p < 0 || p + 10 > off+len ) return null;
+			if( getShort( d, p ) == 41 ) {		// OPT; the DO bit is the top bit of the TTL's low half
+				flags |= sKeyEdns;
+				if( (d[p+6] & 0x80) != 0 ) flags |= sKeyDo;
+			}
+			p += 10 + getShort( d, p+8 );
+		}
+		if( p > off+len ) return null;
+		
+		char[] key = new char[ end - off - sHeaderLength + 1 ];
+		for( int i=0 ; i < key.length - 1 ; i++ ) {
+			int c = d[ off + sHeaderLength + i ] & 0xFF;
+			if( c >= 'A' && c <= 'Z' ) c += 'a' - 'A';		// label lengths are all under 64, so this only hits letters
+			key[i] = (char) c;
+		}
+		key[ key.length - 1 ] = (char) flags;
+		return new String( key );
+	}
+	
+	/**
+	 * Length of the question section a key was built from.
+	 * @param key key from getKey
+	 * @return question length
+	 */
+	static int getQuestionLength( String key ) {
+		return key.length() - 1;
+	}
+	
+	/**
+	 * Do two keys ask the same question?  The EDNS flags are ignored, since a server that doesn't
+	 * speak EDNS answers without them.
+	 * @param a key (may be null)
+	 * @param b key (may be null)
+	 * @return whether the questions match
+	 */
+	static boolean sameQuestion( String a, String b ) {
+		if( a == null || b == null ) return a == b;
+		return a.length() == b.length() && a.regionMatches( 0, b, 0, getQuestionLength( a ) );
+	}
+	
+	/**
+	 * Look up the answer for a query and copy it out if there's a fresh one.  The caller still
+	 * has to patch in the transaction id.
+	 * @param key key of the query (from getKey)
+	 * @param now current time (elapsedRealtime ms)
+	 * @param out buffer to copy the answer into
+	 * @param outOff offset within out
+	 * @return answer length, or -1 if there isn't a fresh answer
+	 */
+	synchronized int get( String key, long now, byte[] out, int outOff ) {
+		Entry e = mCache.get( key );
+		if( e != null && e.mExpires <= now ) {
+			mCache.remove( key );
+			e = null;
+		}
+		if( e == null ) {
+			mMisses++;
+			return -1;
+		}
+		mHits++;
+		mSaved += e.mRtt;
+		
+		System.arraycopy( e.mData, 0, out, outOff, e.mData.length );
+		int age = (int)((now - e.mStored) / 1000);
+		for( int i=0 ; i < e.mTtlOffsets.length ; i++ ) {
+			putInt( out, outOff + e.mTtlOffsets[i], Math.max( e.mTtls[i] - age, 0 ) );
+		}
+		return e.mData.length;
+	}
+	
+	/**
+	 * Remember an answer from upstream, if it can be cached.  The caller has already checked
+	 * that it answers the question in key.
+	 * @param key key of the query that was sent
+	 * @param d buffer holding the answer
+	 * @param off offset of the answer within d
+	 * @param len answer length
+	 * @param now current time (elapsedRealtime ms)
+	 * @param rtt time the query took (ms)
+	 */
+	void put( String key, byte[] d, int off, int len, long now, int rtt ) {
+		if( len > sMaxLength ) return;
+		if( (d[off+2] & 0x80) == 0 ) return;		// not an answer
+		if( (d[off+2] & 0x02) != 0 ) return;		// truncated
+		int rcode = d[off+3] & 0x0F;
+		if( rcode != 0 && rcode != 3 ) return;		// only NOERROR and NXDOMAIN
+		
+		int records = getShort( d, off+6 ) + getShort( d, off+8 ) + getShort( d, off+10 );
+		int[] offsets = new int[ records ];
+		int[] ttls = new int[ records ];
+		int count = 0;
+		int minTtl = sMaxTtl;
+		int end = off + len;
+		int p = off + sHeaderLength + getQuestionLength( key );
+		for( int i=0 ; i < records ; i++ ) {
+			p = skipName( d, p, end, true );
+			if( p < 0 || p + 10 > end ) return;
+			int type = getShort( d, p );
+			if( type != 41 ) {		// the OPT pseudo-record's TTL field holds flags
+				int ttl = getInt( d, p+4 );
+				if( ttl < 0 ) ttl = 0;		// RFC 2181: treat the high bit as zero
+				offsets[ count ] = p + 4 - off;
+				ttls[ count++ ] = ttl;
+				minTtl = Math.min( minTtl, ttl );
+			}
+			p += 10 + getShort( d, p+8 );
+		}
+		if( p > end || count == 0 || minTtl == 0 ) return;
+		
+		Entry e = new Entry();
+		e.mData = new byte[ len ];
+		System.arraycopy( d, off, e.mData, 0, len );
+		e.mTtlOffsets = offsets;
+		e.mTtls = ttls;
+		if( count < records ) {
+			e.mTtlOffsets = new int[ count ];
+			e.mTtls = new int[ count ];
+			System.arraycopy( offsets, 0, e.mTtlOffsets, 0, count );
+			System.arraycopy( ttls, 0, e.mTtls, 0, count );
+		}
+		e.mStored = now;
+		e.mExpires = now + minTtl * 1000L;
+		e.mRtt = rtt;
+		synchronized( this ) {
+			mCache.put( key, e );
+		}
+	}
+	
+	/**
+	 * Forget every answer.
+	 */
+	synchronized void clear() {
+		mCache.clear();
+	}
+	
+	/** @return queries answered from the cache */
+	synchronized long getHits() {
+		return mHits;
+	}
+	
+	/** @return cacheable queries that went upstream */
+	synchronized long getMisses() {
+		return mMisses;
+	}
+	
+	/** @return upstream round trip time saved by hits (ms) */
+	synchronized long getSaved() {
+		return mSaved;
+	}
+	
+	/**
+	 * Skip over a domain name.
+	 * @param d message buffer
+	 * @param p offset of the name
+	 * @param end end of the message
+	 * @param pointers whether a compression pointer may end the name
+	 * @return offset just past the name, or -1 if it's malformed
+	 */
+	private static int skipName( byte[] d, int p, int end, boolean pointers ) {
+		while( p < end ) {
+			int l = d[p] & 0xFF;
+			if( l == 0 ) return p + 1;
+			if( (l & 0xC0) == 0xC0 ) return pointers && p + 2 <= end ? p + 2 : -1;
+			if( (l & 0xC0) != 0 ) return -1;
+			p += 1 + l;
+		}
+		return -1;
+	}
+	
+	private static int getShort( byte[] d, int p ) {
+		return ((d[p] & 0xFF) << 8) | (d[p+1] & 0xFF);
+	}
+	
+	private static int getInt( byte[] d, int p ) {
+		return ((d[p] & 0xFF) << 24) | ((d[p+1] & 0xFF) << 16) | ((d[p+2] & 0xFF) << 8) | (d[p+3] & 0xFF);
+	}
+	
+	private static void putInt( byte[] d, int p, int v ) {
+		d[p] = (byte)(v >> 24);
+		d[p+1] = (byte)(v >> 16);
+		d[p+2] = (byte)(v >> 8);
+		d[p+3] = (byte) v;
+	}
+}
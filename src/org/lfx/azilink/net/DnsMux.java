@@ -0,0 +1,364 @@
+/* AziLink: USB tethering for Android
+ * Copyright (C) 2009 by James Perry
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.lfx.azilink.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import android.util.Log;
+
+/**
+ * Forwards DNS queries sent to the redirect address (192.168.56.1:53) over a small pool of
+ * upstream sockets per shard, instead of opening a UdpDriver for every source port the host's
+ * resolver picks.  Each query gets a fresh random transaction id on the way out; the answer is
+ * matched on that id, the socket it was sent from and its question, and sent back to the host with the
+ * original id and addresses.  Queries the engine's DnsCache can answer never leave the phone.
+ * 
+ * Spoofing an answer means guessing both the id and the source port, so ids come from
+ * SecureRandom, each query goes out on a randomly picked socket, and a socket is replaced by
+ * one on a fresh port after it has carried sSocketUses queries.  A replaced socket is kept
+ * open until its queries have had time to be answered.
+ * 
+ * The sockets are opened as queries arrive and closed again once they have been idle for a
+ * while, which also picks up any change to the DNS server.
+ * 
+ * @author Jim Perry
+ *
+ */
+public class DnsMux extends SocketHandler implements TimerCallback {
+	/** Number of queries that can be outstanding at once (power of two) */
+	static final int sMaxPending = 512;
+	/** Time to wait for an answer before a query's slot can be reused (ms) */
+	static final int sQueryTimeout = 12000;
+	/** Time to keep the upstream socket open with nothing going on (ms) */
+	static final int sTimeIdle = 60000;
+	/** Random ids to try before giving up on a query when the table is busy */
+	static final int sIdTries = 16;
+	/** Length of the DNS header; anything shorter isn't a DNS message */
+	static final int sHeaderLength = 12;
+	/** Upstream sockets in the pool */
+	static final int sSockets = 4;
+	/** Queries sent on a socket before it's replaced */
+	static final int sSocketUses = 64;
+	
+	/** UDP engine (and shard) that owns this socket */
+	UdpEngine mUdp;
+	/** VPN engine */
+	VpnNatEngine mEngine;
+	/** Statistics reporter */
+	TransferStatistics mStats;
+	/** Upstream sockets (null entries aren't open yet) */
+	DatagramChannel[] mSockets = new DatagramChannel[ sSockets ];
+	/** Queries sent on each socket */
+	int[] mUses = new int[ sSockets ];
+	/** Sockets that have been replaced but may still get answers, and when they were replaced */
+	ArrayList< DatagramChannel > mRetired = new ArrayList<DatagramChannel>();
+	ArrayList< Long > mRetiredAt = new ArrayList<Long>();
+	/** Idle timer for the socket */
+	TimerHandle mTimer = new TimerHandle( this );
+	/** Last time a query or answer went through */
+	long mLastActive;
+	/** Source of upstream transaction ids and socket choices */
+	SecureRandom mRandom = new SecureRandom();
+	
+	/** Outstanding queries, indexed by the low bits of the upstream id.  mId is -1 for a free slot. */
+	int[] mId = new int[ sMaxPending ];
+	int[] mHostIp = new int[ sMaxPending ];
+	int[] mHostPort = new int[ sMaxPending ];
+	int[] mOrigId = new int[ sMaxPending ];
+	long[] mSent = new long[ sMaxPending ];
+	DatagramChannel[] mSentOn = new DatagramChannel[ sMaxPending ];
+	String[] mQueryKey = new String[ sMaxPending ];
+	/** Scratch addresses for building answers */
+	UdpKey mKey = new UdpKey();
+	
+	/**
+	 * Construct the multiplexer.  Nothing is opened until the first query.
+	 * @param udp owning udp engine
+	 */
+	DnsMux( UdpEngine udp ) {
+		super( null );
+		mUdp = udp;
+		mEngine = udp.mEngine;
+		mStats = mEngine;
+		Arrays.fill( mId, -1 );
+	}
+	
+	/**
+	 * Forward a query from the host.  The id is rewritten in place for the send and then put
+	 * back, so the packet (a view of the VPN's receive buffer) is left as it was.
+	 * @param pkt query packet
+	 */
+	void query( UdpPacket pkt ) {
+		int len = pkt.getDataLength();
+		if( len < sHeaderLength ) return;
+		
+		long now = mUdp.mShard.mTimers.now();
+		String key = DnsCache.getKey( pkt.mRaw.array(), pkt.mOffset + pkt.mDataOffset, len );
+		if( mEngine.mDnsCacheEnabled && key != null && answer( pkt, key, now ) ) return;
+		
+		int id = -1;
+		int slot = 0;
+		for( int i=0 ; i < sIdTries ; i++ ) {
+			int n = mRandom.nextInt( 65536 );
+			slot = n & (sMaxPending-1);
+			if( mId[ slot ] < 0 || now - mSent[ slot ] > sQueryTimeout ) {
+				id = n;
+				break;
+			}
+		}
+		if( id < 0 ) {
+			if(VpnNatEngine.sLog) Log.v("AziLink", "DNS mux full, dropping query" );
+			return;
+		}
+		
+		DatagramChannel socket;
+		try {
+			socket = getSocket( now );
+		} catch( IOException e ) {
+			if(VpnNatEngine.sLog) Log.v("AziLink", "DNS mux open failed: " + e );
+			close();
+			return;
+		}
+		
+		int idOff = pkt.mOffset + pkt.mDataOffset;
+		int origId = ((int) pkt.mRaw.getShort( idOff )) & 0xFFFF;
+		mId[ slot ] = id;
+		mHostIp[ slot ] = pkt.getSrcIp();
+		mHostPort[ slot ] = pkt.getSrcPort();
+		mOrigId[ slot ] = origId;
+		mSent[ slot ] = now;
+		mSentOn[ slot ] = socket;
+		mQueryKey[ slot ] = key;
+		
+		mStats.addBytes( 0, len );
+		pkt.mRaw.putShort( idOff, (short) id );
+		try {
+			pkt.writeData( socket );
+		} catch( IOException e ) {
+			mId[ slot ] = -1;
+			mSentOn[ slot ] = null;
+			mQueryKey[ slot ] = null;
+		} finally {
+			pkt.mRaw.putShort( idOff, (short) origId );
+		}
+		setTimer();
+	}
+	
+	/**
+	 * Answer a query from the cache, if it has a fresh answer.
+	 * @param pkt query packet
+	 * @param key cache key of the query
+	 * @param now current time (elapsedRealtime ms)
+	 * @return whether the query was answered
+	 */
+	private boolean answer( UdpPacket pkt, String key, long now ) {
+		UdpPacket tp = mUdp.getReplyPacket();
+		UdpKey nk = mKey;
+		nk.mSrcIp = pkt.getSrcIp();
+		nk.mSrcPort = pkt.getSrcPort();
+		nk.mDestIp = 0xC0A83801;
+		nk.mDestPort = 53;
+		tp.setBlank( nk );
+		int idOff = tp.mOffset + tp.mDataOffset;
+		int n = mEngine.mDnsCache.get( key, now, tp.mRaw.array(), idOff );
+		if( n < 0 ) return false;
+		
+		if(VpnNatEngine.sLog) Log.v("AziLink", "DNS answered from cache" );
+		tp.mPacketLength = tp.mDataOffset + n;
+		// Give the answer the query's id, and its question too so the name's case matches
+		// (some resolvers randomize it as a check against spoofing).
+		int queryOff = pkt.mOffset + pkt.mDataOffset;
+		tp.mRaw.putShort( idOff, pkt.mRaw.getShort( queryOff ) );
+		System.arraycopy( pkt.mRaw.array(), queryOff + DnsCache.sHeaderLength, tp.mRaw.array(), idOff + DnsCache.sHeaderLength, DnsCache.getQuestionLength( key ) );
+		if( mEngine.isVpnWriteOk() ) {
+			tp.complete();
+			mEngine.vpnWrite( tp.mRaw.array(), (short) tp.mPacketLength );
+		}
+		return true;
+	}
+	
+	/**
+	 * Answers are waiting on the upstream socket
+	 * @param k selection key
+	 */
+	@Override public void onRead( SelectionKey k ) {
+		DatagramChannel socket = (DatagramChannel) k.channel();
+		UdpPacket tp = mUdp.getReplyPacket();
+		UdpKey nk = mKey;
+		nk.mDestIp = 0xC0A83801;		// answers come from the redirect address
+		nk.mDestPort = 53;
+		tp.setBlank( nk );
+		long now = mUdp.mShard.mTimers.now();
+		try {
+			for( ;; ) {
+				int rlen = tp.readData( socket );
+				if( rlen <= 0 ) break;
+				mStats.addBytes( rlen, 0 );
+				if( rlen < sHeaderLength ) continue;
+				
+				int idOff = tp.mOffset + tp.mDataOffset;
+				int id = ((int) tp.mRaw.getShort( idOff )) & 0xFFFF;
+				int slot = id & (sMaxPending-1);
+				if( mId[ slot ] != id || mSentOn[ slot ] != socket || now - mSent[ slot ] > sQueryTimeout ) {
+					if(VpnNatEngine.sLog) Log.v("AziLink", "DNS mux answer with unknown id " + id );
+					continue;
+				}
+				// Anyone who guesses the id could answer some other question, so check the answer
+				// is for the question that was asked.  Leave the slot open for the real answer.
+				String key = mQueryKey[ slot ];
+				if( !DnsCache.sameQuestion( key, DnsCache.getKey( tp.mRaw.array(), idOff, rlen ) ) ) {
+					if(VpnNatEngine.sLog) Log.v("AziLink", "DNS mux answer for the wrong question" );
+					continue;
+				}
+				mId[ slot ] = -1;
+				mSentOn[ slot ] = null;
+				mQueryKey[ slot ] = null;
+				if( mEngine.mDnsCacheEnabled && key != null ) {
+					mEngine.mDnsCache.put( key, tp.mRaw.array(), idOff, rlen, now, (int)(now - mSent[ slot ]) );
+				}
+				if( !mEngine.isVpnWriteOk() ) continue;		// just toss the packet
+				
+				nk.mSrcIp = mHostIp[ slot ];
+				nk.mSrcPort = mHostPort[ slot ];
+				tp.setAddresses( nk );
+				tp.mRaw.putShort( idOff, (short) mOrigId[ slot ] );
+				tp.complete();
+				mEngine.vpnWrite( tp.mRaw.array(), (short) tp.mPacketLength );
+			}
+		} catch( IOException e ) {
+			if(VpnNatEngine.sLog) Log.v("AziLink", "DNS mux read failed: " + e );
+			close();
+			return;
+		}
+		setTimer();
+	}
+	
+	/**
+	 * Pick the socket for the next query, opening or replacing it as needed, and close any
+	 * replaced sockets whose queries have all timed out.
+	 * @param now current time (elapsedRealtime ms)
+	 * @return socket to send on
+	 * @throws IOException
+	 */
+	private DatagramChannel getSocket( long now ) throws IOException {
+		while( mRetired.size() > 0 && now - mRetiredAt.get( 0 ) > sQueryTimeout ) {
+			closeSocket( mRetired.remove( 0 ) );
+			mRetiredAt.remove( 0 );
+		}
+		
+		int i = mRandom.nextInt( sSockets );
+		if( mSockets[ i ] != null && mUses[ i ] >= sSocketUses ) {
+			mRetired.add( mSockets[ i ] );
+			mRetiredAt.add( now );
+			mSockets[ i ] = null;
+		}
+		if( mSockets[ i ] == null ) {
+			mSockets[ i ] = open();
+			mUses[ i ] = 0;
+		}
+		mUses[ i ]++;
+		return mSockets[ i ];
+	}
+	
+	/**
+	 * Open an upstream socket on a fresh port and point it at the current DNS server.
+	 * @return new socket
+	 * @throws IOException
+	 */
+	private DatagramChannel open() throws IOException {
+		int ip = mEngine.getDnsServer();
+		byte[] addr = new byte[4];
+		addr[0] = (byte)(ip >> 24);
+		addr[1] = (byte)(ip >> 16);
+		addr[2] = (byte)(ip >> 8);
+		addr[3] = (byte)(ip >> 0);
+		
+		if(VpnNatEngine.sLog) Log.v("AziLink", "DNS mux connect to " + InetAddress.getByAddress(addr).getHostAddress() );
+		DatagramChannel socket = DatagramChannel.open();
+		try {
+			socket.configureBlocking( false );
+			socket.connect( new InetSocketAddress( InetAddress.getByAddress( addr ), 53 ) );
+			socket.register( mUdp.mShard.mSelector, SelectionKey.OP_READ, this );
+		} catch( IOException e ) {
+			closeSocket( socket );
+			throw e;
+		}
+		return socket;
+	}
+	
+	/**
+	 * Close every upstream socket and forget every outstanding query.
+	 */
+	void close() {
+		mUdp.mShard.mTimers.killTimer( mTimer );
+		for( int i=0 ; i < sSockets ; i++ ) {
+			if( mSockets[ i ] != null ) closeSocket( mSockets[ i ] );
+			mSockets[ i ] = null;
+		}
+		for( int i=0 ; i < mRetired.size() ; i++ ) {
+			closeSocket( mRetired.get( i ) );
+		}
+		mRetired.clear();
+		mRetiredAt.clear();
+		Arrays.fill( mId, -1 );
+		Arrays.fill( mSentOn, null );
+		Arrays.fill( mQueryKey, null );
+	}
+	
+	/**
+	 * Close one socket, ignoring errors.
+	 * @param socket socket to close
+	 */
+	private void closeSocket( DatagramChannel socket ) {
+		try {
+			socket.close();
+		} catch( IOException e ) {
+		}
+	}
+	
+	/**
+	 * Note activity on the socket.  Like UdpDriver, the timer is only armed once and onTimer()
+	 * re-arms it if the socket wasn't actually idle.
+	 */
+	private void setTimer() {
+		mLastActive = mUdp.mShard.mTimers.now();
+		if( !mTimer.isPending() ) {
+			mUdp.mShard.mTimers.setTimer( mTimer, sTimeIdle );
+		}
+	}
+	
+	/**
+	 * Timer to close the sockets once they're idle
+	 */
+	public void onTimer() {
+		long left = mLastActive + sTimeIdle - mUdp.mShard.mTimers.now();
+		if( left > 0 ) {
+			mUdp.mShard.mTimers.setTimer( mTimer, (int) left );
+			return;
+		}
+		if(VpnNatEngine.sLog) Log.v("AziLink", "DNS mux idle, closing" );
+		close();
+	}
+}
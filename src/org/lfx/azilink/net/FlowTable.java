@@ -0,0 +1,239 @@
+/* AziLink: USB tethering for Android
+ * Copyright (C) 2009 by James Perry
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.lfx.azilink.net;
+
+import java.util.Collection;
+
+/**
+ * NAT table keyed by a flow's 4-tuple (src/dest ip/port, 96 bits), stored in primitive arrays with
+ * open addressing.  Lookups probe with the raw header fields, so forwarding a packet never allocates
+ * a key object.  The hash mixes all 96 bits, since flows to one server port differ only in the host's
+ * source port, and a load factor of at most 1/2 keeps the probe sequences short.  Removal shifts
+ * the following entries back instead of leaving tombstones.
+ * 
+ * Not synchronized; each shard owns its own tables.
+ * 
+ * @author Jim Perry
+ *
+ * @param <V> connection stored in the table
+ */
+public class FlowTable<V> {
+	/** Initial number of slots (power of two) */
+	static final int sInitialCapacity = 64;
+	
+	/** Source ip (high 32 bits) and destination ip (low 32 bits) of each slot */
+	private long[] mAddrs;
+	/** Source port (high 16 bits) and destination port (low 16 bits) of each slot */
+	private int[] mPorts;
+	/** Connection in each slot (null if the slot is free) */
+	private Object[] mValues;
+	/** Number of connections */
+	private int mSize = 0;
+	
+	FlowTable() {
+		allocate( sInitialCapacity );
+	}
+	
+	/**
+	 * Replace the arrays with empty ones.
+	 * @param capacity number of slots (power of two)
+	 */
+	private void allocate( int capacity ) {
+		mAddrs = new long[ capacity ];
+		mPorts = new int[ capacity ];
+		mValues = new Object[ capacity ];
+	}
+	
+	/**
+	 * Mix the 4-tuple down to a slot hash (the 64-bit finalizer from MurmurHash3).
+	 * @param addrs packed ips
+	 * @param ports packed ports
+	 * @return hash
+	 */
+	static int hash( long addrs, int ports ) {
+		long h = addrs ^ (ports * 0x9E3779B97F4A7C15L);
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return (int) h;
+	}
+	
+	/**
+	 * Pack two ips the way they're stored.
+	 */
+	static long packAddrs( int srcIp, int destIp ) {
+		return ((long) srcIp << 32) | (destIp & 0xFFFFFFFFL);
+	}
+	
+	/**
+	 * Pack two ports the way they're stored.
+	 */
+	static int packPorts( int srcPort, int destPort ) {
+		return (srcPort << 16) | (destPort & 0xFFFF);
+	}
+	
+	/**
+	 * Find the slot holding a flow.
+	 * @return slot, or -1 if the flow isn't in the table
+	 */
+	private int find( long addrs, int ports ) {
+		int mask = mValues.length - 1;
+		int i = hash( addrs, ports ) & mask;
+		while( mValues[ i ] != null ) {
+			if( mAddrs[ i ] == addrs && mPorts[ i ] == ports ) return i;
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Look up a connection.
+	 * @return connection, or null if there isn't one
+	 */
+	@SuppressWarnings("unchecked")
+	V get( int srcIp, int destIp, int srcPort, int destPort ) {
+		int i = find( packAddrs( srcIp, destIp ), packPorts( srcPort, destPort ) );
+		return (i < 0) ? null : (V) mValues[ i ];
+	}
+	
+	/**
+	 * Add a connection, replacing any other one with the same addresses.
+	 * @param v connection (not null)
+	 */
+	void put( int srcIp, int destIp, int srcPort, int destPort, V v ) {
+		if( (mSize + 1) * 2 > mValues.length ) grow();
+		long addrs = packAddrs( srcIp, destIp );
+		int ports = packPorts( srcPort, destPort );
+		int mask = mValues.length - 1;
+		int i = hash( addrs, ports ) & mask;
+		while( mValues[ i ] != null ) {
+			if( mAddrs[ i ] == addrs && mPorts[ i ] == ports ) {
+				mValues[ i ] = v;
+				return;
+			}
+			i = (i + 1) & mask;
+		}
+		mAddrs[ i ] = addrs;
+		mPorts[ i ] = ports;
+		mValues[ i ] = v;
+		mSize++;
+	}
+	
+	/**
+	 * Remove a connection.
+	 * @return connection that was removed, or null if there wasn't one
+	 */
+	@SuppressWarnings("unchecked")
+	V remove( int srcIp, int destIp, int srcPort, int destPort ) {
+		int i = find( packAddrs( srcIp, destIp ), packPorts( srcPort, destPort ) );
+		if( i < 0 ) return null;
+		V v = (V) mValues[ i ];
+		
+		// Pull back any following entries that would no longer be reachable across the gap.
+		int mask = mValues.length - 1;
+		int gap = i;
+		int j = i;
+		for( ;; ) {
+			j = (j + 1) & mask;
+			if( mValues[ j ] == null ) break;
+			int home = hash( mAddrs[ j ], mPorts[ j ] ) & mask;
+			// Entry j can move into the gap unless its home slot lies cyclically in (gap, j].
+			if( ((j - home) & mask) >= ((j - gap) & mask) ) {
+				mAddrs[ gap ] = mAddrs[ j ];
+				mPorts[ gap ] = mPorts[ j ];
+				mValues[ gap ] = mValues[ j ];
+				gap = j;
+			}
+		}
+		mValues[ gap ] = null;
+		mSize--;
+		return v;
+	}
+	
+	/**
+	 * Double the number of slots and re-file everything.
+	 */
+	private void grow() {
+		long[] addrs = mAddrs;
+		int[] ports = mPorts;
+		Object[] values = mValues;
+		allocate( values.length * 2 );
+		int mask = mValues.length - 1;
+		for( int j = 0 ; j < values.length ; j++ ) {
+			if( values[ j ] == null ) continue;
+			int i = hash( addrs[ j ], ports[ j ] ) & mask;
+			while( mValues[ i ] != null ) i = (i + 1) & mask;
+			mAddrs[ i ] = addrs[ j ];
+			mPorts[ i ] = ports[ j ];
+			mValues[ i ] = values[ j ];
+		}
+	}
+	
+	/**
+	 * Copy out every connection, for tearing down the whole table (removal reorders the slots,
+	 * so the table can't be walked while connections are being removed).
+	 * @param out collection to add the connections to
+	 */
+	@SuppressWarnings("unchecked")
+	void values( Collection<? super V> out ) {
+		for( int i = 0 ; i < mValues.length ; i++ ) {
+			if( mValues[ i ] != null ) out.add( (V) mValues[ i ] );
+		}
+	}
+	
+	/**
+	 * Get the number of connections.
+	 * @return connections
+	 */
+	int size() {
+		return mSize;
+	}
+	
+	/**
+	 * Is the table empty?
+	 * @return whether there are no connections
+	 */
+	boolean isEmpty() {
+		return mSize == 0;
+	}
+	
+	/**
+	 * Total number of slots that successful lookups of every entry would examine right now
+	 * (equal to the entry count when there are no collisions).  Walks the whole table, so it's
+	 * only meant for statistics.  May be called from another thread; the answer is then only
+	 * approximate.
+	 * @return probes for all entries
+	 */
+	long getProbes() {
+		Object[] values = mValues;
+		long[] addrs = mAddrs;
+		int[] ports = mPorts;
+		if( addrs.length != values.length || ports.length != values.length ) return 0;		// mid-resize
+		int mask = values.length - 1;
+		long probes = 0;
+		for( int i = 0 ; i < values.length ; i++ ) {
+			if( values[ i ] == null ) continue;
+			int home = hash( addrs[ i ], ports[ i ] ) & mask;
+			probes += ((i - home) & mask) + 1;
+		}
+		return probes;
+	}
+}
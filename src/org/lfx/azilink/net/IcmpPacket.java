@@ -32,7 +32,8 @@ public class IcmpPacket {
 	 * @param nk src/dest addresses (inverted)
 	 */
 	IcmpPacket( IcmpKey nk ) {
-		mRaw = ByteBuffer.allocate( 1500 );
+		mPool = PacketPool.sMtu;
+		mRaw = mPool.get();
 		mIcmpOffset = 20;
 		mDataOffset = mIcmpOffset + 8;
 		mPacketLength = mDataOffset;
@@ -42,47 +43,43 @@ public class IcmpPacket {
 		mRaw.putShort( 8, (short) 0xFF01 );	// 255 TTL, ICMP
 		mRaw.putInt( 12, nk.mDestIp );		// src
 		mRaw.putInt( 16, nk.mSrcIp );		// dest
+		mRaw.putLong( mIcmpOffset, 0 );		// pooled buffer may hold an old header
+	}
+	
+	/**
+	 * Hand the packet's buffer back to the pool.  Call once the packet has been written to the
+	 * VPN; the packet can't be used afterwards.  Does nothing for imported packets.
+	 */
+	void release() {
+		if( mPool != null ) {
+			mPool.release( mRaw );
+			mPool = null;
+			mRaw = null;
+		}
 	}
 	
 	/** Swap src/dest IP addresses */
 	void swapHosts() {
-		int src = mRaw.getInt(12);
-		mRaw.putInt(12, mRaw.getInt(16));
-		mRaw.putInt(16, src);
+		int src = mRaw.getInt(mOffset+12);
+		mRaw.putInt(mOffset+12, mRaw.getInt(mOffset+16));
+		mRaw.putInt(mOffset+16, src);
 	}
 	
 	/** Prepare to send packet.  Store size and compute checksums. */
 	void complete() {
-		mRaw.putShort( 2, (short) mPacketLength );
-		mRaw.putShort( 10, (short) 0 );				// zero header checksum for calculation
-		mRaw.putShort( mIcmpOffset+2, (short) 0 );	// zero udp checksum for calculation
+		int o = mOffset;
+		mRaw.putShort( o+2, (short) mPacketLength );
+		mRaw.putShort( o+10, (short) 0 );				// zero header checksum for calculation
+		mRaw.putShort( o+mIcmpOffset+2, (short) 0 );	// zero icmp checksum for calculation
+		
+		byte[] buf = mRaw.array();
 		
 		// ** IP header **
-		int sum = 0;
-		for( int i=0 ; i<mIcmpOffset ; i+=2 ) {
-			sum += ((int) mRaw.getShort( i )) & 0xFFFF;
-		}
-		while( sum>>>16 != 0 ) {
-			sum = (sum & 0xFFFF) + (sum >>> 16);
-		}
-		sum = ~sum;
-		mRaw.putShort( 10, (short) sum );
+		mRaw.putShort( o+10, (short) Checksum.finish( Checksum.sum( buf, o, mIcmpOffset, 0 ) ) );
 		
 		// ** ICMP **
-		sum = 0;
-		// -1 is so we don't scan a final odd byte
-		for( int i=mIcmpOffset ; i<mPacketLength-1 ; i+=2 ) {
-			sum += ((int) mRaw.getShort( i )) & 0xFFFF;
-		}
-		if( mPacketLength%2 != 0 ) {
-			int val = ((int) mRaw.get( mPacketLength-1 ))&0xFF;
-			sum += (val << 8);
-		}
-		while( (sum>>>16) != 0 ) {
-			sum = (sum & 0xFFFF) + (sum >>> 16);
-		}
-		sum = ~sum;
-		mRaw.putShort( mIcmpOffset+2, (short) sum );
+		long sum = Checksum.sum( buf, o+mIcmpOffset, mPacketLength-mIcmpOffset, 0 );
+		mRaw.putShort( o+mIcmpOffset+2, (short) Checksum.finish( sum ) );
 	}
 	
 	/** Load a provided ICMP packet.  Do not alter the passed array until the IcmpPacket is destroyed!
@@ -90,18 +87,48 @@ public class IcmpPacket {
 	 * @param pkt ICMP source packet
 	 */
 	IcmpPacket( byte[] pkt ) {
-		mRaw = ByteBuffer.wrap( pkt );
-		mIcmpOffset = (((int) mRaw.get(0)) & 0x0F) * 4;
+		this( pkt, 0, pkt.length );
+	}
+	
+	/** Load an ICMP packet from part of a larger buffer.  Do not alter the passed array until the
+	 * IcmpPacket is destroyed!
+	 * 
+	 * @param pkt buffer holding the packet
+	 * @param off offset of the IP header within pkt
+	 * @param len number of valid bytes from off
+	 */
+	IcmpPacket( byte[] pkt, int off, int len ) {
+		wrap( ByteBuffer.wrap( pkt ), off, len );
+	}
+	
+	/**
+	 * Build an empty view.  Call wrap() before using it.
+	 */
+	IcmpPacket() {
+	}
+	
+	/**
+	 * Point this packet at a received packet, without copying or allocating anything, so one
+	 * view can be reused for every packet.
+	 * @param raw buffer holding the packet (do not alter while the view is in use)
+	 * @param off offset of the IP header within raw
+	 * @param len number of valid bytes from off
+	 */
+	void wrap( ByteBuffer raw, int off, int len ) {
+		mRaw = raw;
+		mPool = null;
+		mOffset = off;
+		mIcmpOffset = (((int) mRaw.get(off)) & 0x0F) * 4;
 		mDataOffset = mIcmpOffset + 8;			
-		mPacketLength = ((int) mRaw.getShort( 2 )) & 0xFFFF;
-		if( mPacketLength > pkt.length ) mPacketLength = pkt.length;
+		mPacketLength = ((int) mRaw.getShort( off + 2 )) & 0xFFFF;
+		if( mPacketLength > len ) mPacketLength = len;
 	}
 	
 	/** Returns the ICMP protocol 
 	 * @return protocol
 	 */
 	int getProtocol() {
-		return mRaw.get( 9 ) & 0xFF;
+		return mRaw.get( mOffset + 9 ) & 0xFF;
 	}
 	
 	/** 
@@ -110,11 +137,21 @@ public class IcmpPacket {
 	 */
 	IcmpKey getAddresses() {
 		IcmpKey nk = new IcmpKey();
-		nk.mSrcIp = mRaw.getInt( 12 );
-		nk.mDestIp = mRaw.getInt( 16 );
+		nk.mSrcIp = getSrcIp();
+		nk.mDestIp = getDestIp();
 		return nk;
 	}
 	
+	/** @return source ip */
+	int getSrcIp() {
+		return mRaw.getInt( mOffset + 12 );
+	}
+	
+	/** @return destination ip */
+	int getDestIp() {
+		return mRaw.getInt( mOffset + 16 );
+	}
+	
 	/**
 	 * Set the payload of this ICMP packet.
 	 * 
@@ -122,8 +159,19 @@ public class IcmpPacket {
 	 * @param len length of payload (if less than the array size)
 	 */
 	public void setData( byte[] info, int len ) {
-		int maxlen = Math.min(len, 1500-mDataOffset);
-		System.arraycopy( info, 0, mRaw.array(), mDataOffset, maxlen );
+		setData( info, 0, len );
+	}
+	
+	/**
+	 * Set the payload of this ICMP packet from part of an array.
+	 * 
+	 * @param info buffer holding the payload
+	 * @param off offset of the payload within info
+	 * @param len length of payload
+	 */
+	public void setData( byte[] info, int off, int len ) {
+		int maxlen = Math.min(len, mRaw.capacity()-mOffset-mDataOffset);
+		System.arraycopy( info, off, mRaw.array(), mOffset + mDataOffset, maxlen );
 		mPacketLength = mDataOffset + maxlen;
 	}
 
@@ -141,7 +189,7 @@ public class IcmpPacket {
 	 */
 	public byte[] getData() {
 		byte[] dd = new byte[ getDataLength() ];
-		System.arraycopy( mRaw.array(), mDataOffset, dd, 0, dd.length );
+		System.arraycopy( mRaw.array(), mOffset + mDataOffset, dd, 0, dd.length );
 		return dd;
 	}
 	
@@ -150,7 +198,7 @@ public class IcmpPacket {
 	 * @param v ICMP type
 	 */
 	public void setType(int v) {
-		mRaw.put(mIcmpOffset, (byte)v);		
+		mRaw.put(mOffset+mIcmpOffset, (byte)v);		
 	}
 	
 	/**
@@ -158,7 +206,7 @@ public class IcmpPacket {
 	 * @param v ICMP code
 	 */
 	public void setCode(int v) {
-		mRaw.put(mIcmpOffset+1, (byte)v);
+		mRaw.put(mOffset+mIcmpOffset+1, (byte)v);
 	}
 	
 	/**
@@ -166,7 +214,7 @@ public class IcmpPacket {
 	 * @param v ICMP ID
 	 */
 	public void setId( int v) {
-		mRaw.putShort(mIcmpOffset+4, (short)v);
+		mRaw.putShort(mOffset+mIcmpOffset+4, (short)v);
 	}
 	
 	/**
@@ -174,7 +222,7 @@ public class IcmpPacket {
 	 * @param v sequence number
 	 */
 	public void setSequence( int v ) {
-		mRaw.putShort(mIcmpOffset+6, (short)v);
+		mRaw.putShort(mOffset+mIcmpOffset+6, (short)v);
 	}
 	
 	/**
@@ -182,7 +230,7 @@ public class IcmpPacket {
 	 * @return icmp type
 	 */
 	public int getType() {
-		return mRaw.get(mIcmpOffset) & 0xFF;
+		return mRaw.get(mOffset+mIcmpOffset) & 0xFF;
 	}
 	
 	/**
@@ -190,7 +238,7 @@ public class IcmpPacket {
 	 * @return icmp code
 	 */
 	public int getCode() {
-		return mRaw.get(mIcmpOffset+1) & 0xFF;
+		return mRaw.get(mOffset+mIcmpOffset+1) & 0xFF;
 	}
 	
 	/**
@@ -198,7 +246,7 @@ public class IcmpPacket {
 	 * @return icmp id
 	 */
 	public int getId() {
-		return mRaw.getShort(mIcmpOffset+4) & 0xFFFF;
+		return mRaw.getShort(mOffset+mIcmpOffset+4) & 0xFFFF;
 	}
 	
 	/**
@@ -206,7 +254,7 @@ public class IcmpPacket {
 	 * @return packet sequence number
 	 */
 	public int getSequence() {
-		return mRaw.getShort(mIcmpOffset+6) & 0xFFFF;
+		return mRaw.getShort(mOffset+mIcmpOffset+6) & 0xFFFF;
 	}
 	
 	static final int TYPE_ICMP_ECHO_REPLY = 0;
@@ -218,12 +266,16 @@ public class IcmpPacket {
 	static final int TYPE_ICMP_ECHO_REQUEST = 8;
 	static final int PROTO_ICMP_ECHO_REQUEST = 0;
 	
-	/** Offset to the ICMP header */
+	/** Offset of the IP header within mRaw (0 unless this is a view of a larger buffer) */
+	int mOffset;
+	/** Offset to the ICMP header, relative to mOffset */
 	int mIcmpOffset;
-	/** Offset to the payload */
+	/** Offset to the payload, relative to mOffset */
 	int mDataOffset;
 	/** Total packet length */
 	int mPacketLength;
 	/** Buffer containing the raw packet */
 	ByteBuffer mRaw;
+	/** Pool the buffer was borrowed from (null if the packet was imported) */
+	PacketPool mPool;
 }
@@ -0,0 +1,113 @@
+/* AziLink: USB tethering for Android
+ * Copyright (C) 2009 by James Perry
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.lfx.azilink.net;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Free list of fixed size packet buffers.  Packets borrow a buffer when they're built and hand it
+ * back once the VPN link has copied the frame into its output queue, so steady state forwarding
+ * doesn't leave anything for the garbage collector.  Buffers are heap buffers since the packet
+ * classes work on array() directly.
+ * 
+ * Shared by all shards, so every method is synchronized.
+ * 
+ * @author Jim Perry
+ *
+ */
+public class PacketPool {
+	/** Buffers for TCP and ICMP packets */
+	static final PacketPool sMtu = new PacketPool( 1500, 64 );
+	/** Buffers for UDP packets and packets handed between shards */
+	static final PacketPool sLarge = new PacketPool( 3000, 32 );
+	/** Buffers for TCP packets when the tun MTU is raised past what sLarge holds */
+	static final PacketPool sJumbo = new PacketPool( 8192, 16 );
+	
+	/**
+	 * Pick the smallest pool whose buffers hold a packet of the given size.
+	 * @param size packet size
+	 * @return pool
+	 */
+	static PacketPool forSize( int size ) {
+		if( size <= sMtu.mSize ) return sMtu;
+		if( size <= sLarge.mSize ) return sLarge;
+		return sJumbo;
+	}
+	
+	/** Size of every buffer in the pool */
+	final int mSize;
+	/** Buffers available for reuse */
+	private ByteBuffer[] mFree;
+	/** Number of entries in mFree */
+	private int mCount = 0;
+	/** Number of get() calls satisfied from the free list */
+	long mHits = 0;
+	/** Number of get() calls that had to allocate */
+	long mMisses = 0;
+	
+	/**
+	 * Build an empty pool.
+	 * @param size size of each buffer
+	 * @param max most buffers to keep around (extras are left to the garbage collector)
+	 */
+	PacketPool( int size, int max ) {
+		mSize = size;
+		mFree = new ByteBuffer[ max ];
+	}
+	
+	/**
+	 * Borrow a buffer.  Contents are undefined.
+	 * @return cleared buffer of mSize bytes
+	 */
+	synchronized ByteBuffer get() {
+		if( mCount == 0 ) {
+			mMisses++;
+			return ByteBuffer.allocate( mSize );
+		}
+		mHits++;
+		ByteBuffer b = mFree[ --mCount ];
+		mFree[ mCount ] = null;
+		b.clear();
+		return b;
+	}
+	
+	/**
+	 * Return a buffer to the pool.  Buffers that didn't come from this pool are ignored.
+	 * @param b buffer (must not be used afterwards)
+	 */
+	synchronized void release( ByteBuffer b ) {
+		if( b == null || b.capacity() != mSize || mCount == mFree.length ) return;
+		mFree[ mCount++ ] = b;
+	}
+	
+	/**
+	 * Get the number of requests satisfied from the pool.
+	 * @return hits
+	 */
+	synchronized long getHits() {
+		return mHits;
+	}
+	
+	/**
+	 * Get the number of requests that needed a new buffer.
+	 * @return misses
+	 */
+	synchronized long getMisses() {
+		return mMisses;
+	}
+}
@@ -0,0 +1,138 @@
+/* AziLink: USB tethering for Android
+ * Copyright (C) 2009 by James Perry
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.lfx.azilink.net;
+
+/**
+ * Tracks which bytes of a TCP reassembly buffer have arrived.  The contiguous run from offset 0 is
+ * kept as a single count, so in-order data costs O(1).  Anything beyond a hole is kept as a sorted
+ * list of disjoint ranges, so out-of-order data costs O(holes).  Nothing is allocated unless the
+ * number of holes outgrows the list.
+ * 
+ * @author Jim Perry
+ *
+ */
+final class RangeList {
+	/** Number of bytes valid from offset 0 */
+	int mContiguous = 0;
+	/** Ranges past the first hole, as sorted [start,end) pairs that never touch each other or mContiguous */
+	int[] mRanges = new int[ 8 ];
+	/** Number of ranges in mRanges */
+	int mCount = 0;
+	
+	/**
+	 * Mark a range as received.
+	 * @param start first byte
+	 * @param end one past the last byte
+	 */
+	void add( int start, int end ) {
+		if( end <= start ) return;
+		if( start <= mContiguous ) {
+			if( end <= mContiguous ) return;
+			mContiguous = end;
+			if( mCount != 0 ) absorb();
+			return;
+		}
+		
+		int[] r = mRanges;
+		int n = mCount;
+		int i = 0;
+		while( i < n && r[i*2+1] < start ) i++;
+		int j = i;
+		while( j < n && r[j*2] <= end ) {
+			start = Math.min( start, r[j*2] );
+			end = Math.max( end, r[j*2+1] );
+			j++;
+		}
+		if( j == i ) {
+			// New hole; make room for one more range
+			if( n*2 == r.length ) {
+				r = new int[ r.length * 2 ];
+				System.arraycopy( mRanges, 0, r, 0, n*2 );
+				mRanges = r;
+			}
+			System.arraycopy( r, i*2, r, i*2+2, (n-i)*2 );
+			n++;
+		} else if( j > i+1 ) {
+			// Filled the holes between ranges i..j-1
+			System.arraycopy( r, j*2, r, i*2+2, (n-j)*2 );
+			n -= j-i-1;
+		}
+		r[i*2] = start;
+		r[i*2+1] = end;
+		mCount = n;
+	}
+	
+	/**
+	 * Merge ranges that the contiguous run now reaches.
+	 */
+	private void absorb() {
+		int i = 0;
+		while( i < mCount && mRanges[i*2] <= mContiguous ) {
+			mContiguous = Math.max( mContiguous, mRanges[i*2+1] );
+			i++;
+		}
+		if( i != 0 ) {
+			System.arraycopy( mRanges, i*2, mRanges, 0, (mCount-i)*2 );
+			mCount -= i;
+		}
+	}
+	
+	/**
+	 * Is nothing valid at all?
+	 * @return whether there are no bytes or ranges
+	 */
+	boolean isEmpty() {
+		return mContiguous == 0 && mCount == 0;
+	}
+	
+	/**
+	 * Number of bytes valid from offset 0.
+	 * @return length of the contiguous run
+	 */
+	int getContiguous() {
+		return mContiguous;
+	}
+	
+	/**
+	 * Remove bytes from the front, shifting everything else down.
+	 * @param n bytes to remove (no more than getContiguous())
+	 */
+	void consume( int n ) {
+		mContiguous -= n;
+		for( int i = 0 ; i < mCount*2 ; i++ ) {
+			mRanges[i] -= n;
+		}
+	}
+	
+	/**
+	 * Forget everything.
+	 */
+	void clear() {
+		mContiguous = 0;
+		mCount = 0;
+	}
+	
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append( "[0," ).append( mContiguous ).append( ')' );
+		for( int i = 0 ; i < mCount ; i++ ) {
+			sb.append( " [" ).append( mRanges[i*2] ).append( ',' ).append( mRanges[i*2+1] ).append( ')' );
+		}
+		return sb.toString();
+	}
+}
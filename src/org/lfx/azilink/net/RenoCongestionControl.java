@@ -0,0 +1,66 @@
+/* AziLink: USB tethering for Android
+ * Copyright (C) 2009 by James Perry
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.lfx.azilink.net;
+
+/**
+ * Classic Reno congestion control (RFC 5681): slow start up to ssthresh, then one segment per RTT.
+ * 
+ * @author Jim Perry
+ *
+ */
+public class RenoCongestionControl implements CongestionControl {
+	/** Segment size (bytes) */
+	int mMss;
+	/** Congestion window (bytes) */
+	int mCwnd;
+	/** Slow start threshold (bytes) */
+	int mSsthresh = sMaxWindow;
+	
+	/** Initial window in segments (RFC 6928) */
+	static final int sInitialSegments = 10;
+	/** Upper bound on the window, so it can't overflow */
+	static final int sMaxWindow = 1 << 30;
+	
+	public void init( int mss ) {
+		mMss = mss;
+		mCwnd = sInitialSegments * mss;
+	}
+	
+	public int getWindow() {
+		return mCwnd;
+	}
+	
+	public void onAck( int acked, long now, int rtt ) {
+		if( mCwnd < mSsthresh ) {
+			mCwnd += Math.min( acked, mMss );
+		} else {
+			mCwnd += Math.max( 1, (int)((long) mMss * acked / mCwnd) );
+		}
+		mCwnd = Math.min( mCwnd, sMaxWindow );
+	}
+	
+	public void onLoss( int inFlight ) {
+		mSsthresh = Math.max( inFlight / 2, 2 * mMss );
+		mCwnd = mSsthresh;
+	}
+	
+	public void onTimeout( int inFlight ) {
+		mSsthresh = Math.max( inFlight / 2, 2 * mMss );
+		mCwnd = mMss;
+	}
+}
@@ -0,0 +1,247 @@
+/* AziLink: USB tethering for Android
+ * Copyright (C) 2009 by James Perry
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.lfx.azilink.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+
+/**
+ * Circular byte buffer for the TCP send and receive queues.  Consuming bytes from the front only moves
+ * the head, so the copy volume scales with the bytes moved instead of the amount buffered.
+ * 
+ * Offsets are relative to the head.  append() and size() treat the buffer as a FIFO; put() writes
+ * anywhere within the capacity without changing size(), for reassembling out-of-order data.
+ * 
+ * Storage is borrowed from BufferPool.sStream the first time data is stored, and handed back by
+ * release() once the owner has nothing left in it.
+ * 
+ * @author Jim Perry
+ *
+ */
+final class RingBuffer {
+	/** Storage (null until something is stored) */
+	byte[] mData;
+	/** Size to borrow when storage is needed */
+	int mCapacity;
+	/** Index of the byte at offset 0 */
+	int mHead = 0;
+	/** Number of bytes appended and not yet skipped */
+	int mSize = 0;
+	/** Views over mData used for scatter/gather channel I/O (null along with mData) */
+	ByteBuffer[] mViews;
+	
+	/**
+	 * Create an empty buffer.  Nothing is allocated yet.
+	 * @param capacity size (bytes)
+	 */
+	RingBuffer( int capacity ) {
+		mCapacity = capacity;
+	}
+	
+	/** @return size of the buffer (bytes); may grow slightly once storage is borrowed */
+	int capacity() {
+		return (mData != null) ? mData.length : mCapacity;
+	}
+	
+	/**
+	 * Borrow storage if there isn't any yet.
+	 */
+	private void allocate() {
+		if( mData != null ) return;
+		mData = BufferPool.sStream.get( mCapacity );
+		mHead = 0;
+		mViews = new ByteBuffer[] { ByteBuffer.wrap( mData ), ByteBuffer.wrap( mData ) };
+	}
+	
+	/**
+	 * Give the storage back to the pool.  Anything still in the buffer is lost, so the owner
+	 * should only call this once it's drained.
+	 */
+	void release() {
+		if( mData == null ) return;
+		BufferPool.sStream.release( mData );
+		mData = null;
+		mViews = null;
+		mHead = 0;
+		mSize = 0;
+	}
+	
+	/** @return bytes appended and not yet skipped */
+	int size() {
+		return mSize;
+	}
+	
+	/** @return room left for append() */
+	int free() {
+		return capacity() - mSize;
+	}
+	
+	/**
+	 * Translate an offset from the head into an index into mData.
+	 * @param offset offset (0..capacity)
+	 * @return array index
+	 */
+	private int index( int offset ) {
+		int i = mHead + offset;
+		return (i >= mData.length) ? i - mData.length : i;
+	}
+	
+	/**
+	 * Append one byte.  The caller must check free().
+	 * @param b byte
+	 */
+	void append( byte b ) {
+		allocate();
+		mData[ index( mSize ) ] = b;
+		mSize++;
+	}
+	
+	/**
+	 * Append bytes.  The caller must check free().
+	 * @param src source array
+	 * @param srcOff offset in src
+	 * @param len bytes to append
+	 */
+	void append( byte[] src, int srcOff, int len ) {
+		put( mSize, src, srcOff, len );
+		mSize += len;
+	}
+	
+	/**
+	 * Copy bytes in at an offset from the head, without changing size().
+	 * @param offset where to put them
+	 * @param src source array
+	 * @param srcOff offset in src
+	 * @param len bytes to copy (offset + len must not exceed the capacity)
+	 */
+	void put( int offset, byte[] src, int srcOff, int len ) {
+		if( len <= 0 ) return;
+		allocate();
+		int i = index( offset );
+		int first = Math.min( len, mData.length - i );
+		System.arraycopy( src, srcOff, mData, i, first );
+		System.arraycopy( src, srcOff + first, mData, 0, len - first );
+	}
+	
+	/**
+	 * Copy bytes out from an offset from the head.
+	 * @param offset where to start
+	 * @param dst destination array
+	 * @param dstOff offset in dst
+	 * @param len bytes to copy
+	 */
+	void get( int offset, byte[] dst, int dstOff, int len ) {
+		if( len <= 0 ) return;
+		int i = index( offset );
+		int first = Math.min( len, mData.length - i );
+		System.arraycopy( mData, i, dst, dstOff, first );
+		System.arraycopy( mData, 0, dst, dstOff + first, len - first );
+	}
+	
+	/**
+	 * Copy bytes out from an offset from the head.
+	 * @param offset where to start
+	 * @param dst destination; position is advanced
+	 * @param len bytes to copy
+	 */
+	void get( int offset, ByteBuffer dst, int len ) {
+		if( len <= 0 ) return;
+		int i = index( offset );
+		int first = Math.min( len, mData.length - i );
+		dst.put( mData, i, first );
+		dst.put( mData, 0, len - first );
+	}
+	
+	/**
+	 * Drop bytes from the front.
+	 * @param n bytes to drop
+	 */
+	void skip( int n ) {
+		if( mData != null ) mHead = index( n );
+		mSize = Math.max( mSize - n, 0 );
+	}
+	
+	/**
+	 * Change the capacity, keeping everything from the head up to the old capacity (or the new one,
+	 * if that's smaller).
+	 * @param capacity new size (bytes)
+	 */
+	void resize( int capacity ) {
+		mCapacity = capacity;
+		if( mData == null ) return;
+		byte[] d = BufferPool.sStream.get( capacity );
+		get( 0, d, 0, Math.min( d.length, mData.length ) );
+		BufferPool.sStream.release( mData );
+		mData = d;
+		mHead = 0;
+		mSize = Math.min( mSize, d.length );
+		mViews[0] = ByteBuffer.wrap( mData );
+		mViews[1] = ByteBuffer.wrap( mData );
+	}
+	
+	/**
+	 * Point mViews at a range of the buffer.
+	 * @param offset start of the range
+	 * @param len length of the range
+	 * @return number of views needed (1 or 2)
+	 */
+	private int setViews( int offset, int len ) {
+		int i = index( offset );
+		int first = Math.min( len, mData.length - i );
+		ByteBuffer a = mViews[0];
+		a.limit( i + first );
+		a.position( i );
+		if( first == len ) return 1;
+		ByteBuffer b = mViews[1];
+		b.limit( len - first );
+		b.position( 0 );
+		return 2;
+	}
+	
+	/**
+	 * Read from a channel straight into the free space at the tail.
+	 * @param ch channel
+	 * @param max most bytes to read
+	 * @return bytes read, or -1 at end of stream
+	 * @throws IOException
+	 */
+	int readFrom( ScatteringByteChannel ch, int max ) throws IOException {
+		int len = Math.min( max, free() );
+		if( len <= 0 ) return 0;
+		allocate();
+		long n = ch.read( mViews, 0, setViews( mSize, len ) );
+		if( n > 0 ) mSize += (int) n;
+		return (int) n;
+	}
+	
+	/**
+	 * Write bytes from the head straight to a channel, and drop whatever was written.
+	 * @param ch channel
+	 * @param len bytes available at the head (may exceed size() for a reassembly buffer)
+	 * @return bytes written
+	 * @throws IOException
+	 */
+	int writeTo( GatheringByteChannel ch, int len ) throws IOException {
+		if( len <= 0 ) return 0;
+		long n = ch.write( mViews, 0, setViews( 0, len ) );
+		if( n > 0 ) skip( (int) n );
+		return (int) n;
+	}
+}
@@ -20,19 +20,27 @@ package org.lfx.azilink.net;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.spi.SelectorProvider;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import android.os.SystemClock;
 import android.util.Log;
 
 /**
- * This is the main worker thread for the NAT engine.  It blocks in a standard select() loop
+ * This is a worker thread for the NAT engine.  It blocks in a standard select() loop
  * over all network connections, and also dispatches timer events.
  * 
+ * The engine may run several of these (shards).  Each one owns its own selector, timer queue
+ * and TCP/UDP NAT tables, so a flow is only ever touched by the thread of the shard it hashes to.
+ * Shard 0 additionally owns the VPN listener and the VPN link itself.  Other threads hand work to a
+ * shard through post() and postPacket().
+ * 
  * @author Jim Perry
  *
  */
@@ -45,15 +53,109 @@ public class SelectThread implements Runnable {
 	Thread mThread = new Thread( this );
 	/** Pointer to the actual NAT engine; used for callbacks. */
 	VpnNatEngine mEngine;
+	/** Index of this shard within the engine (shard 0 owns the VPN link) */
+	int mIndex;
+	/** Queue of all timer events for this shard */
+	TimerQueue mTimers = new TimerQueue();
+	/** TCP NAT engine for the flows owned by this shard */
+	TcpEngine mTCP;
+	/** UDP NAT engine for the flows owned by this shard */
+	UdpEngine mUDP;
+	/** Packets from the VPN handed over by the ingress shard */
+	ConcurrentLinkedQueue<ByteBuffer> mInbox = new ConcurrentLinkedQueue<ByteBuffer>();
+	/** Work handed over by other threads */
+	ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<Runnable>();
+	/** Has the selector already been woken up for queued work? */
+	AtomicBoolean mWakeup = new AtomicBoolean( false );
 	
 	/**
 	 * Construct the select thread.  Does not start the thread.
 	 * @param engine pointer to the NAT engine
+	 * @param index shard number
 	 */
-	SelectThread( VpnNatEngine engine ) {
+	SelectThread( VpnNatEngine engine, int index ) {
 		mEngine = engine;
+		mIndex = index;
+		mTCP = new TcpEngine( engine, this );
+		mUDP = new UdpEngine( engine, this );
+	}
+	
+	/**
+	 * Is the caller running on this shard's worker thread?
+	 * @return whether we're on the worker thread
+	 */
+	boolean isCurrent() {
+		return Thread.currentThread() == mThread;
+	}
+	
+	/**
+	 * Run a task on this shard's worker thread.  Runs immediately if we're already on it.
+	 * @param r task
+	 */
+	void post( Runnable r ) {
+		if( isCurrent() ) {
+			r.run();
+			return;
+		}
+		mTasks.add( r );
+		wakeup();
 	}
 	
+	/**
+	 * Queue a task for this shard's next pass through the select loop, even if we're already on
+	 * its thread.  Use this when running the task right away could re-enter the caller.
+	 * @param r task
+	 */
+	void postLater( Runnable r ) {
+		mTasks.add( r );
+		wakeup();
+	}
+	
+	/**
+	 * Hand a packet from the VPN to this shard.  The packet must not be altered afterwards; the
+	 * shard returns the buffer to PacketPool.sLarge once it's been dispatched.
+	 * @param d single ip packet (position 0, limit at the end of the packet)
+	 */
+	void postPacket( ByteBuffer d ) {
+		mInbox.add( d );
+		wakeup();
+	}
+	
+	/**
+	 * Wake the selector, unless a wakeup is already pending.
+	 */
+	private void wakeup() {
+		if( mWakeup.compareAndSet( false, true ) ) {
+			Selector s = mSelector;
+			if( s != null ) s.wakeup();
+		}
+	}
+	
+	/**
+	 * Process everything other threads have handed to us.
+	 */
+	private void runQueued() {
+		mWakeup.set( false );
+		Runnable r;
+		while( (r = mTasks.poll()) != null ) {
+			r.run();
+		}
+		ByteBuffer d;
+		while( (d = mInbox.poll()) != null ) {
+			mEngine.dispatch( this, d, 0, d.limit() );
+			PacketPool.sLarge.release( d );
+		}
+	}
+	
+	/**
+	 * Close all TCP connections owned by this shard, on the shard's own thread.
+	 */
+	Runnable mCloseAllTcp = new Runnable() {
+		public void run() {
+			mTCP.closeAll();
+		}
+	};
+	
 	/**
 	 * Start the worker thread.
 	 * @throws IOException
@@ -61,6 +163,7 @@ public class SelectThread implements Runnable {
 	void start() throws IOException {
 		mSelector = SelectorProvider.provider().openSelector();
 		mDie = false;
+		mThread.setName( "AziLink-" + mIndex );
 		mThread.start();
 	}
 	
@@ -87,26 +190,40 @@ public class SelectThread implements Runnable {
 			// Attach the debugger to the new thread and automatically breakpoint:
 			//   android.os.Debug.waitForDebugger();
 			
-			// Setup the listener socket (VPN)
-			ServerSocketChannel fdCmd = ServerSocketChannel.open();
-			fdCmd.socket().setReuseAddress( true );			
-			fdCmd.configureBlocking( false );
-			fdCmd.socket().bind( new InetSocketAddress( InetAddress.getByAddress( new byte[] { 127,0,0,1 } ), 41927 ) );
-			fdCmd.register( mSelector, SelectionKey.OP_ACCEPT, new SocketHandler( fdCmd ) {
-				/**
-				 * Notify the VPN engine that a new VPN connection has been made.
-				 */
-				public void onAccept( SelectionKey k ) {
-					mEngine.acceptServerLink( (ServerSocketChannel) k.channel() );
-				}
-			});
+			if( mIndex == 0 ) {
+				// Setup the listener socket (VPN)
+				ServerSocketChannel fdCmd = ServerSocketChannel.open();
+				fdCmd.socket().setReuseAddress( true );			
+				fdCmd.configureBlocking( false );
+				fdCmd.socket().bind( new InetSocketAddress( InetAddress.getByAddress( new byte[] { 127,0,0,1 } ), 41927 ) );
+				fdCmd.register( mSelector, SelectionKey.OP_ACCEPT, new SocketHandler( fdCmd ) {
+					/**
+					 * Notify the VPN engine that a new VPN connection has been made.
+					 */
+					public void onAccept( SelectionKey k ) {
+						mEngine.acceptServerLink( (ServerSocketChannel) k.channel() );
+					}
+				});
+			}
 						
 			// Main select loop
 			for( ;; ) {
+				// Pick up anything other threads queued while we were busy.
+				runQueued();
+				
+				// One ACK per TCP link for everything that arrived this pass.
+				mTCP.flushAcks();
+				
+				// Send everything this pass queued for the VPN in one go.
+				mEngine.vpnFlush();
+				
 				// Ask the timer class when the next timeout is due to be dispatched.
-				long nextTimeout = mEngine.mTimers.nextTimer();
+				long nextTimeout = mTimers.nextTimer();
 				
-				if( nextTimeout >= 0 ) {
+				if( mWakeup.get() ) {
+					// Work arrived after runQueued(), so don't block.
+					mSelector.selectNow();
+				} else if( nextTimeout >= 0 ) {
 					// There's a pending timeout, so select() over that interval
 					if(VpnNatEngine.sLog) Log.v("AziLink", "SelectThread timeout: " + (nextTimeout - SystemClock.elapsedRealtime()));
 					mSelector.select( Math.max(nextTimeout - SystemClock.elapsedRealtime(), 1) );
@@ -120,10 +237,11 @@ public class SelectThread implements Runnable {
 				if( mDie ) {
 					break;
 				}
+				mTimers.updateClock();
 				
 				// If a timeout has occured, then issue callbacks to the relevent classes.
-				if( SystemClock.elapsedRealtime() >= nextTimeout ) {
-					mEngine.mTimers.runTimers();					
+				if( nextTimeout >= 0 && SystemClock.elapsedRealtime() >= nextTimeout ) {
+					mTimers.runTimers();					
 				}
 				
 				// Lock to prevent the UI from screwing with the selector table (does it still actually do this?)
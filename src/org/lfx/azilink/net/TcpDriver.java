@@ -17,7 +17,10 @@
 
 package org.lfx.azilink.net;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ScatteringByteChannel;
 
 /**
  * Represents a single TCP connection.  This class translates between a byte stream from the VPN (representing
@@ -46,28 +49,37 @@ public interface TcpDriver {
 	void onBindComplete( boolean success );
 	
 	/**
-	 * Returns pending data for the TCP stream. 
-	 * @param data data to be sent over NIO
+	 * Writes pending data for the TCP stream straight from the driver's buffer to the socket.
+	 * @param ch socket to write to
+	 * @return bytes written
+	 * @throws IOException if the socket write fails
 	 */
-	void read(ByteBuffer data);
+	int writeTo(GatheringByteChannel ch) throws IOException;
 	
 	/**
-	 * Adds data read out of the TCP NIO stream.  May not pull the entire buffer -- check data's length
+	 * Reads from the socket straight into the driver's buffer, as much as the host's window allows.
+	 * @param ch socket to read from
+	 * @return bytes read, or -1 at end of stream
+	 * @throws IOException if the socket read fails
+	 */
+	int readFrom(ScatteringByteChannel ch) throws IOException;
+	
+	/**
+	 * Adds data already read out of the TCP NIO stream.  May not pull the entire buffer -- check data's length
 	 * after this call.
 	 * @param data data received from NIO
 	 */
 	void write(ByteBuffer data);
 	
 	/**
-	 * Returns the maximum number of bytes that read() could return.
-	 * @return maximum bytes read could return.
+	 * Returns the maximum number of bytes that writeTo() could write.
+	 * @return maximum bytes writeTo could write.
 	 */
 	int getReadAvailableSize();
 	
-	// Return maximum number of bytes we can write (more will throw an exception)
 	/**
-	 * Returns the maximum number of bytes that can be written.
-	 * @return maximum bytes write can accept.
+	 * Returns the maximum number of bytes that can be read in.
+	 * @return maximum bytes readFrom or write can accept.
 	 */
 	int getWriteAvailableSize();
 	
@@ -81,4 +93,32 @@ public interface TcpDriver {
 	 * Immediately teardown the link.  If a FIN hasn't occured yet, then a RST will be immediately issued.
 	 */
 	void destroy();
+	
+	/**
+	 * The VPN link is no longer congested.  Transmit anything that was held back and ask NIO for more data.
+	 */
+	void onLinkReady();
+	
+	/**
+	 * Send the ACK queued with TcpDriverPacketSink.queueAck(), if it's still needed.
+	 */
+	void flushAck();
+	
+	/**
+	 * Returns the number of bytes this link has sent to the host more than once.
+	 * @return retransmitted bytes
+	 */
+	long getRetransmittedBytes();
+	
+	/**
+	 * Returns the smallest round trip time measured on this link.
+	 * @return RTT (ms), or -1 if there's no sample yet
+	 */
+	int getMinRtt();
+	
+	/**
+	 * Returns the smoothed round trip time used to set the retransmit timeout.
+	 * @return RTT (ms), or -1 if there's no sample yet
+	 */
+	int getSmoothedRtt();
 }
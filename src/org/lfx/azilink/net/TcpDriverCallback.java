@@ -33,18 +33,18 @@ public interface TcpDriverCallback {
 	void onBeginBind(InetSocketAddress address) throws IOException;
 	
 	/**
-	 * TCP driver has new data available to be written over NIO
+	 * TCP driver has new data available to be written over NIO with TcpDriver.writeTo()
 	 */
 	void onNewDataAvailable();
 	
 	/**
-	 * TCP driver is now ready to receive more data from NIO
+	 * TCP driver is now ready to receive more data from NIO with TcpDriver.readFrom()
 	 */
 	void onRequestMoreData();
 	
 	/**
-	 * The host requested the connection be closed.  After all pending NIO data has been sent,
-	 * call TcpDriver.close()
+	 * The host requested the connection be closed.  All of its data has already gone out through
+	 * TcpDriver.writeTo(), so call TcpDriver.close() when ready.
 	 */
 	void onClosed();
 	
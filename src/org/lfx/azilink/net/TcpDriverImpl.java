@@ -21,7 +21,8 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.util.BitSet;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ScatteringByteChannel;
 
 import android.util.Log;
 
@@ -37,16 +38,32 @@ public class TcpDriverImpl implements TcpDriver {
 	TcpKey mAddr;
 	/** pointer to callbacks (see TcpToNio) */
 	TcpDriverCallback mCallback;
-	/** Timer key used for TCP retransmits */
-	long mTimerRetransmitKey;
-	/** Timer key used to destroy this link */
-	long mTimerDestroyKey;
-	/** Number of retransmissions since last ACK */
+	/** Timer used for TCP retransmits */
+	TimerHandle mTimerRetransmit;
+	/** Timer used to destroy this link */
+	TimerHandle mTimerDestroy;
+	/** Is the destroy timer running as the idle timer (see markActive)? */
+	boolean mIdleTimer = false;
+	/** Last time any data moved over this link */
+	long mLastActive;
+	/** Number of retransmissions since last ACK (also the backoff shift) */
 	int mRetries;				
 	/** Timer queue we can add our timeouts into */
 	TimerQueue mTimer;
 	/** Callback used to send packets through the VPN */
 	TcpDriverPacketSink mHost;
+	/** Pure ACK packet reused for every ACK on this link (only the header changes) */
+	TcpPacket mAckPacket;
+	
+	// Delayed ACKs (RFC 1122):
+	/** In-order bytes received since we last sent an ACK */
+	int mBytesUnacked = 0;
+	/** Is an ACK queued to go out at the end of this select pass? */
+	boolean mAckQueued = false;
+	/** Timer that sends a delayed ACK */
+	TimerHandle mTimerAck;
+	/** Right edge of the window we last advertised (absolute) */
+	long mLastWindowEdge = 0;
 	
 	// Input buffer:
 	/** Sequence # that buffer starts at (this is the only absolute #) */
@@ -55,10 +72,10 @@ public class TcpDriverImpl implements TcpDriver {
 	int mInFinSeq = -2;			 
 	/** Is the first packet in the buffer a SYN packet? (data will be ignored) */
 	boolean mInSyn = false;		
-	/** Partially assembled buffer for the TCP stream */
-	ByteBuffer mInBuffer;		
-	/** Bitmap indicating which bytes of mInBuffer are currently valid */
-	BitSet mInValid;		
+	/** Partially assembled buffer for the TCP stream, offset 0 is mInSeq (grows on demand up to mInWindow; only allocated while holding data) */
+	RingBuffer mInBuffer;		
+	/** Which bytes of mInBuffer are currently valid */
+	RangeList mInValid = new RangeList();
 	
 	// Output buffer:
 	// Might need to add FIN to buffer when compacting!
@@ -72,16 +89,108 @@ public class TcpDriverImpl implements TcpDriver {
 	boolean mOutSyn = false;
 	/** Next byte to transmit */
 	int mOutNextXmit=0;			 
-	/** Output data (limit() is set by the host's advertised window size) */
-	ByteBuffer mOutBuffer;
+	/** Output data, offset 0 is mOutSeq (grows on demand up to mMaxWindow; only allocated while holding data) */
+	RingBuffer mOutBuffer;
+	/** Most data mOutBuffer may hold: the host's advertised window, or the capacity if that's smaller */
+	int mOutLimit;
+	/** Host's advertised window, already scaled (bytes) */
+	int mOutWindow = 0xFFFF;
+	/** One past the highest byte ever sent; anything below this that goes out again is a retransmission */
+	int mOutHighXmit = 0;
+	/** Bytes sent to the host more than once */
+	long mRetransmitBytes = 0;
+	
+	// Selective acknowledgement (RFC 2018):
+	/** Did the host's SYN offer SACK? */
+	boolean mSackPermitted = false;
+	/** Ranges the host has SACKed, as sorted, disjoint [start,end) pairs relative to mOutSeq */
+	int[] mSacked = new int[ mMaxSackRanges * 2 ];
+	/** Number of ranges in mSacked */
+	int mSackCount = 0;
+	/** Scratch space for the blocks in one ACK */
+	int[] mSackEdges = new int[ 8 ];
+	
+	// Fast retransmit and recovery (RFC 6582):
+	/** Duplicate ACKs received in a row */
+	int mDupAcks = 0;
+	/** Are we in fast recovery? */
+	boolean mInRecovery = false;
+	/** Highest byte sent when recovery (or the last timeout) began, relative; 0 once it's all been ACKed */
+	int mRecover = 0;
+	
+	// Congestion control:
+	/** Congestion window for data sent to the host */
+	CongestionControl mCongestion;
+	/** Spread each window over the RTT instead of sending it in one burst? */
+	boolean mPacing;
+	/** Timer that resumes paced transmission */
+	TimerHandle mTimerPace;
+	/** Bytes pacing allows us to send right now */
+	int mPaceCredit = 0;
+	/** Pacing rate (bytes per ms) */
+	int mPaceRate = 1;
+	/** When mPaceCredit was last topped up (elapsedRealtime ms) */
+	long mPaceLast = 0;
+	
+	// Round trip time estimation (RFC 6298):
+	/** Smoothed RTT, scaled by 8 (ms) (-1 until the first sample) */
+	int mSrtt = -1;
+	/** RTT variation, scaled by 4 (ms) */
+	int mRttVar = 0;
+	/** Smallest RTT sample (ms) */
+	int mMinRtt = Integer.MAX_VALUE;
+	/** Retransmit timeout before backoff (ms) */
+	int mRto = mInitialRto;
+	/** End of the segment being timed, relative to mOutSeq (-1 if none) */
+	int mRttSeq = -1;
+	/** When the timed segment was sent (elapsedRealtime ms) */
+	long mRttStart;
+	
+	// Window scaling (RFC 7323):
+	/** Largest window we'll offer the host, and the largest either buffer may grow to */
+	int mMaxWindow;
+	/** Window we offer the host (mMaxWindow, or less if the host can't do window scaling) */
+	int mInWindow;
+	/** Is the memory budget currently holding our buffers below what the windows allow? */
+	boolean mThrottled = false;
+	/** Did the host's SYN offer window scaling? */
+	boolean mWindowScaling = false;
+	/** Shift applied to the windows we advertise */
+	int mInShift = 0;
+	/** Shift the host applies to the windows it advertises */
+	int mOutShift = 0;
+	
+	// Segment size:
+	/** MSS we advertise (tun MTU less the IP and TCP headers) */
+	int mLocalMss;
+	/** Largest payload we send: the smaller of the host's MSS and mLocalMss */
+	int mSegmentSize;
+	/** Pool with buffers big enough for a full segment */
+	PacketPool mPool;
 	
 	// Configuration:
-	/** Advertised window size over TCP segment */
-	static final int mWindowSize = 32*1024;		 
-	/** Time between retransmissions */
-	static final int mTimeRetransmit = 2000;	 
-	/** Maximum number of retries */
-	static final int mMaxRetries = 6;			 
+	/** Initial size of the input and output buffers */
+	static final int mInitialBufferSize = 32*1024;
+	/** Largest shift count allowed by RFC 7323 */
+	static final int mMaxWindowShift = 14;
+	/** MSS to assume if the host's SYN doesn't carry one (RFC 9293) */
+	static final int mDefaultMss = 536;
+	/** Most SACKed ranges remembered; the highest are dropped first */
+	static final int mMaxSackRanges = 8;
+	/** Retransmit timeouts that only fill SACK holes before assuming the host discarded SACKed data */
+	static final int mMaxSackRetries = 2;
+	/** Duplicate ACKs that trigger a fast retransmit */
+	static final int mDupAckThreshold = 3;
+	/** Longest an ACK is delayed waiting for a second segment (ms) */
+	static final int mDelayedAck = 40;
+	/** Retransmit timeout until the first RTT sample */
+	static final int mInitialRto = 1000;
+	/** Smallest retransmit timeout.  The USB link's RTT is a few ms, so RFC 6298's 1s is far too slow. */
+	static final int mMinRto = 200;
+	/** Largest retransmit timeout, including backoff */
+	static final int mMaxRto = 60000;
+	/** Maximum number of retries (the timeout doubles each time) */
+	static final int mMaxRetries = 8;			 
 	/** Max time to try to connect to foreign host (repeated SYN will restart timer) */
 	static final int mTimeConnect = 20000;		
 	/** Max time in established state with no communication before delete from NAT table */
@@ -100,14 +209,31 @@ public class TcpDriverImpl implements TcpDriver {
 	 * @param callback TcpToNio pointer
 	 * @param timer select thread's timer queue
 	 * @param host where to send VPN packets
+	 * @param window largest window to use in each direction (bytes)
+	 * @param mtu tun MTU (bytes)
+	 * @param cc congestion control for data sent to the host
+	 * @param pacing whether to pace transmissions
 	 */
-	TcpDriverImpl(TcpDriverCallback callback, TimerQueue timer, TcpDriverPacketSink host) {
+	TcpDriverImpl(TcpDriverCallback callback, TimerQueue timer, TcpDriverPacketSink host, int window, int mtu,
+			CongestionControl cc, boolean pacing) {
 		mCallback = callback;
 		mTimer = timer;
-		mInBuffer = ByteBuffer.allocate(mWindowSize);
-		mInValid = new BitSet(mWindowSize);
-		mOutBuffer = ByteBuffer.allocate(mWindowSize);
+		mTimerRetransmit = new TimerHandle(mTimerRetransmitCallback);
+		mTimerDestroy = new TimerHandle(mTimerDestroyCallback);
+		mTimerPace = new TimerHandle(mTimerPaceCallback);
+		mTimerAck = new TimerHandle(mTimerAckCallback);
+		mCongestion = cc;
+		mPacing = pacing;
+		mMaxWindow = window;
+		mInWindow = Math.min(window, 0xFFFF);
+		int size = Math.min(mInitialBufferSize, window);
+		mInBuffer = new RingBuffer(size);
+		mOutBuffer = new RingBuffer(size);
+		mOutLimit = size;
 		mHost = host;
+		mLocalMss = mtu - 40;
+		mSegmentSize = Math.min(mDefaultMss, mLocalMss);
+		mPool = PacketPool.forSize(mtu);
 	}
 
 	/**
@@ -118,8 +244,8 @@ public class TcpDriverImpl implements TcpDriver {
 		if( !mBindComplete ) destroy();
 		if( mOutFinSeq == -2 ) {
 			if(VpnNatEngine.sLog) Log.v("AziLink", "Tcp::close" );
-			mOutFinSeq = mOutBuffer.position();
-			if( mOutBuffer.hasRemaining() ) mOutBuffer.put((byte)0);
+			mOutFinSeq = mOutBuffer.size();
+			if( mOutBuffer.size() < mOutLimit ) mOutBuffer.append((byte)0);
 			xmit();
 		}
 	}
@@ -128,18 +254,29 @@ public class TcpDriverImpl implements TcpDriver {
 	 * Immediately teardown the link.  If a FIN hasn't occured yet, then a RST will be immediately issued.
 	 */
 	public void destroy() {
-		if(mInFinSeq != -1 || mOutFinSeq != -1 || getMaxInLength() != 0 || mOutBuffer.position() != 0 ) {
+		if(VpnNatEngine.sLog) Log.v("AziLink", "Tcp::destroy retransmitted " + mRetransmitBytes + " bytes, rtt min " + getMinRtt() + " avg " + getSmoothedRtt() );
+		if(mInFinSeq != -1 || mOutFinSeq != -1 || getMaxInLength() != 0 || mOutBuffer.size() != 0 ) {
 			// close was not clean, so transmit a RST packet
 			if(VpnNatEngine.sLog) Log.v("AziLink", "Tcp::destroy (reset mode)" );
 			TcpPacket tp = makePacket();
 			tp.setResetFlag();
 			tp.complete();
 			mHost.write(tp);
+			tp.release();
 		} else {
 			if(VpnNatEngine.sLog) Log.v("AziLink", "Tcp::destroy (no reset packet)" );
 		}
-		mTimer.killTimer(mTimerDestroyKey, mTimerDestroyCallback);
-		mTimer.killTimer(mTimerRetransmitKey, mTimerRetransmitCallback);
+		mTimer.killTimer(mTimerDestroy);
+		mTimer.killTimer(mTimerRetransmit);
+		mTimer.killTimer(mTimerPace);
+		mTimer.killTimer(mTimerAck);
+		mAckQueued = false;
+		mInBuffer.release();
+		mOutBuffer.release();
+		if( mThrottled ) {
+			mThrottled = false;
+			mHost.setThrottled(false);
+		}
 		mCallback.onDestroy();
 	}
 
@@ -158,7 +295,101 @@ public class TcpDriverImpl implements TcpDriver {
 		if( mOutSyn ) return 0;
 		if( mOutFinSeq != -2 ) return 0;
 		if( !mBindComplete ) return 0;
-		return mOutBuffer.remaining();		
+		if( mOutBuffer.size() >= mOutLimit ) growOutBuffer();
+		return Math.max(mOutLimit - mOutBuffer.size(), 0);		
+	}
+	
+	/**
+	 * Double the output buffer if the host's window has room for more than it holds.
+	 * @return whether the buffer grew
+	 */
+	boolean growOutBuffer() {
+		int cap = mOutBuffer.capacity();
+		int want = Math.min(Math.min(mOutWindow, mMaxWindow), getBufferLimit());
+		if( cap >= want ) return false;
+		mOutBuffer.resize(Math.min(cap * 2, want));
+		updateOutLimit();
+		if(VpnNatEngine.sLog) Log.v("AziLink", "Tcp::growOutBuffer to " + mOutBuffer.capacity() );
+		return true;
+	}
+	
+	/**
+	 * Recompute how much mOutBuffer may hold from the host's window, the buffer size and the memory budget.
+	 * Anything already buffered past the new limit stays; there's just no more room until it drains.
+	 */
+	void updateOutLimit() {
+		mOutLimit = Math.min(Math.min(mOutWindow, getBufferLimit()), mOutBuffer.capacity());
+	}
+	
+	/**
+	 * This link's share of the engine's buffer budget, per direction.  Also tells the engine whenever
+	 * the share starts or stops cutting into the windows.  A link holding no buffers isn't counted as
+	 * throttled, so the count drops as soon as an idle link gives its memory back.
+	 * @return most bytes either buffer should hold
+	 */
+	int getBufferLimit() {
+		int share = mHost.getBufferShare();
+		boolean holding = mInBuffer.mData != null || mOutBuffer.mData != null;
+		boolean throttled = holding && (share < mInWindow || share < Math.min(mOutWindow, mMaxWindow));
+		if( throttled != mThrottled ) {
+			if(VpnNatEngine.sLog) Log.v("AziLink", "Tcp::getBufferLimit throttled=" + throttled + " share=" + share );
+			mThrottled = throttled;
+			mHost.setThrottled(throttled);
+		}
+		return share;
+	}
+	
+	/**
+	 * Size a drained (released) buffer's next allocation to the current share, so links give memory
+	 * back under pressure.  It grows again on demand once the pressure is gone.
+	 * @param b released buffer
+	 */
+	void fitBuffer(RingBuffer b) {
+		int limit = getBufferLimit();
+		if( b.capacity() > limit ) b.resize(limit);
+	}
+	
+	/**
+	 * Make sure the input buffer can hold n bytes past mInSeq.  The buffer never grows past the
+	 * window edge we've promised the host, so a host can't push it beyond our share of the budget.
+	 * @param n bytes needed (must not exceed getWindowEdge())
+	 */
+	void ensureInCapacity(int n) {
+		int cap = mInBuffer.capacity();
+		if( n <= cap ) return;
+		while( cap < n ) cap *= 2;
+		mInBuffer.resize(Math.min(cap, getWindowEdge()));
+		if(VpnNatEngine.sLog) Log.v("AziLink", "Tcp::ensureInCapacity grew to " + mInBuffer.capacity() );
+	}
+	
+	/**
+	 * How far past mInSeq the host has been told it may send.  Anything beyond this is dropped
+	 * rather than buffered, whatever the configured window.
+	 * @return bytes past mInSeq
+	 */
+	int getWindowEdge() {
+		return Math.max(Math.min((int)(mLastWindowEdge - mInSeq), mInWindow), 0);
+	}
+	
+	/**
+	 * Record the right edge of a window that went out to the host.  Edges only move forward.
+	 * @param edge absolute sequence number of the edge
+	 */
+	void noteWindowEdge(long edge) {
+		if( (int)(edge - mLastWindowEdge) > 0 ) mLastWindowEdge = edge;
+	}
+	
+	/**
+	 * Window to advertise to the host, in header units.
+	 * @param used bytes already buffered past mInSeq
+	 * @return window field value
+	 */
+	int getAdvertisedWindow(int used) {
+		int window = Math.min(mInWindow, getBufferLimit()) - used;
+		// A smaller share closes the window as data arrives, but never pulls back an edge already offered
+		int promised = (int)(mLastWindowEdge - mInSeq) - used;
+		window = Math.min(Math.max(window, promised), mInWindow - used);
+		return Math.max(Math.min(window >> mInShift, 0xFFFF), 0);
 	}
 
 	/**
@@ -184,7 +415,7 @@ public class TcpDriverImpl implements TcpDriver {
 					if( mAddr.mDestPort == 53 && mAddr.mDestIp == 0xC0A83801 ) {	// 0xC0A83801 = 192.168.56.1
 						// Redirect 192.168.56.1:53 to the actual dns server
 						if(VpnNatEngine.sLog) Log.v("AziLink", "Redirecting DNS TCP link");
-						destIp = VpnNatEngine.getDnsIp();						
+						destIp = mHost.getDnsServer();						
 					}
 					
 					byte[] addr = new byte[4];
@@ -193,10 +424,24 @@ public class TcpDriverImpl implements TcpDriver {
 					addr[2] = (byte)(destIp >> 8);
 					addr[3] = (byte)(destIp >> 0);
 					
+					// Window scaling is only used if the host offers it in its SYN.
+					int ws = pkt.getWindowScale();
+					if( ws >= 0 ) {
+						mWindowScaling = true;
+						mOutShift = Math.min(ws, mMaxWindowShift);
+						while( mInShift < mMaxWindowShift && (mMaxWindow >> mInShift) > 0xFFFF ) mInShift++;
+						mInWindow = mMaxWindow;
+					}
+					mOutWindow = pkt.getWindowSize();		// never scaled in a SYN
+					int mss = pkt.getMss();
+					mSegmentSize = Math.min(mss > 0 ? mss : mDefaultMss, mLocalMss);
+					mSackPermitted = pkt.isSackPermitted();
+					mCongestion.init(mSegmentSize);
+					
 					mBindStarted = true;
 					mInSeq = pkt.getSeq();
-					mInBuffer.put(0, (byte) 0);
-					mInValid.set(0);
+					mLastWindowEdge = mInSeq;
+					mInValid.add(0, 1);
 					mInSyn = true;
 					setDestroyTimer(mTimeConnect);
 					// Ask NIO to begin connect()
@@ -211,10 +456,11 @@ public class TcpDriverImpl implements TcpDriver {
 			}
 			// Packet is for an established connection.
 			
-			// Check whether the packet is within the expected window
+			// Check whether the packet is within the window we advertised
 			int seq = (int)(pkt.getSeq() - mInSeq);
+			int edge = getWindowEdge();
 			// Accept seq == limit because they're valid ACK packets
-			if( seq < 0 || seq > mInBuffer.limit() ) {
+			if( seq < 0 || seq > edge ) {
 				// Sequence is out of bounds.  Send an ACK packet with what we expect.
 				// However, a RST is acceptable if SEQ is equal to whatever our last acknowledgement was.
 				if(pkt.isReset() && pkt.getSeq() == mOutSeqLastAck ) {
@@ -223,22 +469,34 @@ public class TcpDriverImpl implements TcpDriver {
 					return;
 				}
 				
-				if(VpnNatEngine.sLog) Log.v("AziLink", "Tcp::packet Seq out of bounds - saw " + seq + " with limit " + mInBuffer.limit() );
-				TcpPacket tp = makePacket();
-				tp.complete();
-				mHost.write(tp);
+				if(VpnNatEngine.sLog) Log.v("AziLink", "Tcp::packet Seq out of bounds - saw " + seq + " with limit " + edge );
+				queueAck();
 				return;
 			}
-			// Copy as much data as will fit in the window
-			int len = Math.min(pkt.getDataLength(), mInBuffer.limit() - seq);
+			// Copy as much data as will fit in the window; tell the host where the edge is if it overran it
+			int len = Math.min(pkt.getDataLength(), edge - seq);
+			if( len < pkt.getDataLength() ) queueAck();
 			boolean newData = false;
 			if( len > 0 ) {
-				mInBuffer.position(seq);
-				pkt.getData(mInBuffer);
-				mInValid.set(seq, seq+len);
+				int have = getMaxInLength();
+				ensureInCapacity(seq + len);
+				pkt.getData(mInBuffer, seq, len);
+				mInValid.add(seq, seq+len);
 				if(VpnNatEngine.sLog) Log.v("AziLink", "Tcp::packet imports " + len + " bytes of data from host");
 				newData = true;
-				setDestroyTimer(mTimeIdle);
+				markActive();
+				if( seq != have || getMaxInLength() != seq + len ) {
+					// Out of order, duplicate, or filled a hole: the host's loss recovery wants to hear now
+					queueAck();
+				} else {
+					// In order: ACK every second segment, or when the delayed ACK timer runs out
+					mBytesUnacked += len;
+					if( mBytesUnacked >= 2 * mSegmentSize ) {
+						queueAck();
+					} else if( !mTimerAck.isPending() ) {
+						mTimer.setTimer(mTimerAck, mDelayedAck);
+					}
+				}
 			}
 			if(pkt.isReset() ) {
 				if(VpnNatEngine.sLog) Log.v("AziLink","Tcp::packet RESET");
@@ -246,51 +504,93 @@ public class TcpDriverImpl implements TcpDriver {
 				return;
 			}
 			
-			boolean wasFull = !mOutBuffer.hasRemaining();
+			boolean wasFull = mOutBuffer.size() >= mOutLimit;
+			boolean resend = false;
 			
 			// Process the ACK portion
 			if(pkt.isAck()) {
 				int ack = (int)(pkt.getAck() - mOutSeq);				
-				if( ack > 0 && ack <= mOutBuffer.position() ) {
+				if( ack > 0 && ack <= mOutBuffer.size() ) {
 					// ACK is reasonable, so eliminate whatever data it refers to
-					if(VpnNatEngine.sLog) Log.v("AziLink", "Tcp::Packet before seq=" + mOutSeq + ", pos=" + mOutBuffer.position() + ", fin=" + mOutFinSeq + ",ACK=" + ack );
+					if(VpnNatEngine.sLog) Log.v("AziLink", "Tcp::Packet before seq=" + mOutSeq + ", pos=" + mOutBuffer.size() + ", fin=" + mOutFinSeq + ",ACK=" + ack );
 					if( mOutSyn ) wasFull = true;
 					mOutSyn = false;
 					mOutSeq = (mOutSeq + ack) & 0xFFFFFFFF;
-					mOutBuffer.flip();
-					mOutBuffer.position(ack);
-					mOutBuffer.compact();					
+					mOutBuffer.skip(ack);
+					// Idle links shouldn't hang on to a buffer
+					if( mOutBuffer.size() == 0 ) {
+						mOutBuffer.release();
+						fitBuffer(mOutBuffer);
+					}
 					mOutNextXmit -= ack;
-					mOutNextXmit = Math.min( Math.max( mOutNextXmit, 0 ), mOutBuffer.position() );
+					mOutNextXmit = Math.min( Math.max( mOutNextXmit, 0 ), mOutBuffer.size() );
+					mOutHighXmit = Math.max( mOutHighXmit - ack, 0 );
+					trimSack(ack);
+					if( mRttSeq >= 0 ) {
+						if( ack >= mRttSeq ) {
+							sampleRtt((int)(mTimer.now() - mRttStart));
+							mRttSeq = -1;
+						} else {
+							mRttSeq -= ack;
+						}
+					}
 					if( mOutFinSeq != -2 ) mOutFinSeq -= ack;
-					if( mOutBuffer.hasRemaining() && mOutBuffer.position() == mOutFinSeq ) {
+					if( mOutBuffer.size() < mOutLimit && mOutBuffer.size() == mOutFinSeq ) {
 						// close() couldn't fit the FIN into the buffer, so do it now
-						mOutBuffer.put((byte)0);
+						mOutBuffer.append((byte)0);
 					}
-					if(VpnNatEngine.sLog) Log.v("AziLink", "Tcp::Packet after seq=" + mOutSeq + ", pos=" + mOutBuffer.position() + ", fin=" + mOutFinSeq );
+					if(VpnNatEngine.sLog) Log.v("AziLink", "Tcp::Packet after seq=" + mOutSeq + ", pos=" + mOutBuffer.size() + ", fin=" + mOutFinSeq );
+					
+					mDupAcks = 0;
+					mRecover = Math.max( mRecover - ack, 0 );
+					if( mInRecovery ) {
+						if( mRecover > 0 ) {
+							// Partial ACK: the next hole was lost too, so resend it without waiting
+							resend = true;
+						} else {
+							if(VpnNatEngine.sLog) Log.v("AziLink", "Tcp::Packet leaving fast recovery");
+							mInRecovery = false;
+						}
+					}
+					if( !mInRecovery ) mCongestion.onAck(ack, mTimer.now(), getSmoothedRtt());
 					
 					// Restart timer
 					mRetries = 0;
-					if( mOutBuffer.position() != 0 ) {						
-						setRetransmitTimer(mTimeRetransmit);
+					if( mOutBuffer.size() != 0 ) {						
+						setRetransmitTimer(getRetransmitTimeout());
 					} else {
 						setRetransmitTimer(0);
 					}
 				} else if( ack == 0 ) {
 					if(VpnNatEngine.sLog) Log.v("AziLink", "Tcp::Packet ack does not advance");
+					if( pkt.getDataLength() == 0 && !pkt.isFin() && mOutHighXmit > 0
+							&& (pkt.getWindowSize() << mOutShift) == mOutWindow ) {
+						// Duplicate ACK.  Only start recovery once everything sent before the last
+						// recovery or timeout has been ACKed, so one loss doesn't trigger it twice.
+						mDupAcks++;
+						if( mDupAcks == mDupAckThreshold && mRecover == 0 ) {
+							if(VpnNatEngine.sLog) Log.v("AziLink", "Tcp::Packet fast retransmit");
+							mInRecovery = true;
+							mRecover = mOutHighXmit;
+							mCongestion.onLoss(mOutHighXmit);
+							resend = true;
+						}
+					}
 				} else {
-					if(VpnNatEngine.sLog) Log.v("AziLink", "Tcp::Packet rejected ack seq=" + mOutSeq + ", pos=" + mOutBuffer.position() + ", fin=" + mOutFinSeq + ",ACK=" + ack );
+					if(VpnNatEngine.sLog) Log.v("AziLink", "Tcp::Packet rejected ack seq=" + mOutSeq + ", pos=" + mOutBuffer.size() + ", fin=" + mOutFinSeq + ",ACK=" + ack );
 				}
+				if( mSackPermitted ) recordSack(pkt);
+				if( resend ) retransmitFirst();
 			} else {
 				if(VpnNatEngine.sLog) Log.v("AziLink","Tcp::Packet has no ack flag");
 			}
 			// If it's a FIN packet, process it
 			if(pkt.isFin()) {
 				int fseq = seq + pkt.getDataLength();
-				if( fseq < mInBuffer.limit() ) {
+				if( fseq < mInWindow ) {
 					if(VpnNatEngine.sLog) Log.v("AziLink","Tcp::packet recording FIN at relative sequence " + fseq );
 					mInFinSeq = seq + pkt.getDataLength();
-					mInValid.set(mInFinSeq);
+					mInValid.add(mInFinSeq, mInFinSeq+1);
 				} else {
 					if(VpnNatEngine.sLog) Log.v("AziLink","Tcp::packet has incoming FIN but no buffer room" );
 				}
@@ -304,9 +604,7 @@ public class TcpDriverImpl implements TcpDriver {
 				mInSeq = (mInSeq+1) & 0xFFFFFFFF;
 				
 				// Send an acknowledge packet
-				TcpPacket tp = makePacket();
-				tp.complete();
-				mHost.write(tp);
+				sendAck();
 				
 				if( mOutFinSeq == -2 ) {
 					if(VpnNatEngine.sLog) Log.v("AziLink","Tcp::packet has no output FIN, so calling onClosed");
@@ -330,17 +628,23 @@ public class TcpDriverImpl implements TcpDriver {
 				tp.setFinFlag();
 				tp.complete();
 				mHost.write(tp);
+				ackSent(tp);
+				tp.release();
 			}
 
 			// Process the window size information
-			int ws = pkt.getWindowSize();
-			mOutBuffer.limit(Math.min(ws, mOutBuffer.capacity()));
-			if( mOutFinSeq >= mOutBuffer.limit() ) mOutFinSeq = -2;
+			mOutWindow = pkt.getWindowSize() << mOutShift;
+			// A window smaller than what's buffered just means there's no room; nothing is discarded
+			updateOutLimit();
+			if( mOutBuffer.size() >= mOutLimit ) growOutBuffer();
+			
+			// The ACK may have opened up the congestion window
+			if( !mOutSyn && mOutNextXmit < getDataEnd() ) xmit();
 			
 			if( newData ) {
 				mCallback.onNewDataAvailable();
 			}
-			if( wasFull && mOutBuffer.hasRemaining() && mOutFinSeq == -2 ) {
+			if( wasFull && mOutBuffer.size() < mOutLimit && mOutFinSeq == -2 ) {
 				mCallback.onRequestMoreData();
 			}
 			
@@ -350,10 +654,100 @@ public class TcpDriverImpl implements TcpDriver {
 		}
 	}
 	
+	/**
+	 * Add the SACK blocks from an ACK to the scoreboard.  Blocks that don't lie within the data
+	 * already sent (including D-SACKs below the cumulative ACK) are ignored.
+	 * @param pkt ACK from the host
+	 */
+	void recordSack(TcpPacket pkt) {
+		int n = pkt.getSackBlocks(mSackEdges);
+		for( int i = 0 ; i < n ; i++ ) {
+			int start = mSackEdges[i*2] - (int) mOutSeq;
+			int end = mSackEdges[i*2+1] - (int) mOutSeq;
+			if( start <= 0 || end <= start || end > mOutHighXmit ) continue;
+			addSackRange(start, end);
+		}
+	}
+	
+	/**
+	 * Merge a range into the scoreboard.
+	 * @param start first SACKed byte (relative)
+	 * @param end one past the last SACKed byte (relative)
+	 */
+	void addSackRange(int start, int end) {
+		int[] r = mSacked;
+		int n = mSackCount;
+		int i = 0;
+		while( i < n && r[i*2+1] < start ) i++;
+		int j = i;
+		while( j < n && r[j*2] <= end ) {
+			start = Math.min(start, r[j*2]);
+			end = Math.max(end, r[j*2+1]);
+			j++;
+		}
+		if( j == i ) {
+			// No overlap, so insert a new range (dropping the highest one if we're full)
+			if( n == mMaxSackRanges ) {
+				if( i == n ) return;
+				n--;
+			}
+			System.arraycopy(r, i*2, r, i*2+2, (n-i)*2);
+			n++;
+		} else if( j > i+1 ) {
+			// Collapse ranges i..j-1 into one
+			System.arraycopy(r, j*2, r, i*2+2, (n-j)*2);
+			n -= j-i-1;
+		}
+		r[i*2] = start;
+		r[i*2+1] = end;
+		mSackCount = n;
+	}
+	
+	/**
+	 * Shift the scoreboard after the cumulative ACK advanced.
+	 * @param ack bytes acknowledged
+	 */
+	void trimSack(int ack) {
+		int n = 0;
+		for( int i = 0 ; i < mSackCount ; i++ ) {
+			int end = mSacked[i*2+1] - ack;
+			if( end <= 0 ) continue;
+			mSacked[n*2] = Math.max(mSacked[i*2] - ack, 0);
+			mSacked[n*2+1] = end;
+			n++;
+		}
+		mSackCount = n;
+	}
+	
+	/**
+	 * Fold a new RTT measurement into the estimate and recompute the retransmit timeout (RFC 6298).
+	 * @param rtt round trip time (ms)
+	 */
+	void sampleRtt(int rtt) {
+		if( rtt < mMinRtt ) mMinRtt = rtt;
+		if( mSrtt < 0 ) {
+			mSrtt = rtt << 3;
+			mRttVar = rtt << 1;
+		} else {
+			int err = rtt - (mSrtt >> 3);
+			mSrtt += err;
+			if( err < 0 ) err = -err;
+			mRttVar += err - (mRttVar >> 2);
+		}
+		mRto = Math.max(mMinRto, Math.min((mSrtt >> 3) + Math.max(1, mRttVar), mMaxRto));
+		if(VpnNatEngine.sLog) Log.v("AziLink", "Tcp::sampleRtt " + rtt + " srtt=" + (mSrtt >> 3) + " rto=" + mRto );
+	}
+	
+	/**
+	 * Retransmit timeout with exponential backoff applied.
+	 * @return timeout (ms)
+	 */
+	int getRetransmitTimeout() {
+		return Math.min(mRto << mRetries, mMaxRto);
+	}
+	
 	int getMaxInLength() {
-		int len = mInValid.nextClearBit(0);
-		if( len == -1 ) return mInValid.size();
-		return len;
+		return mInValid.getContiguous();
 	}
 	
 	/**
@@ -363,15 +757,64 @@ public class TcpDriverImpl implements TcpDriver {
 	TcpPacket makePacket() {
 		int len = getMaxInLength();
 		mOutSeqLastAck = mInSeq+len;
-		return new TcpPacket( mAddr, mOutSeq + mOutNextXmit, mInSeq+len, mInBuffer.limit() - len );		
+		TcpPacket tp = new TcpPacket( mPool, mAddr, mOutSeq + mOutNextXmit, mInSeq+len, getAdvertisedWindow(len) );
+		// The SYN+ACK replaces this with an unscaled window and records its own edge
+		if( !mOutSyn ) noteWindowEdge(mInSeq + len + ((long) tp.getWindowSize() << mInShift));
+		return tp;
+	}
+	
+	/**
+	 * Send a pure ACK for everything received so far.  Reuses mAckPacket, so the checksum is
+	 * patched for the changed header fields rather than recomputed.
+	 */
+	void sendAck() {
+		int len = getMaxInLength();
+		mOutSeqLastAck = mInSeq+len;
+		if( mAckPacket == null ) {
+			mAckPacket = new TcpPacket( mAddr, mOutSeq + mOutNextXmit, mInSeq+len, getAdvertisedWindow(len), 64 );
+		} else {
+			mAckPacket.setSeq( mOutSeq + mOutNextXmit );
+			mAckPacket.setAck( mInSeq+len );
+			mAckPacket.setWindowSize( getAdvertisedWindow(len) );
+		}
+		mAckPacket.complete();
+		mHost.write(mAckPacket);
+		ackSent(mAckPacket);
+	}
+	
+	/**
+	 * Record that a packet carrying our current ACK and window went out, so any pending ACK is
+	 * no longer needed.
+	 * @param tp packet that was sent
+	 */
+	void ackSent(TcpPacket tp) {
+		noteWindowEdge(tp.getAck() + ((long) tp.getWindowSize() << mInShift));
+		mBytesUnacked = 0;
+		mAckQueued = false;
+		if( mTimerAck.isPending() ) mTimer.killTimer(mTimerAck);
+	}
+	
+	/**
+	 * Send an ACK at the end of this select pass, so everything that arrives in the same pass
+	 * shares one ACK.
+	 */
+	void queueAck() {
+		if( !mAckQueued ) {
+			mAckQueued = true;
+			mHost.queueAck(this);
+		}
+	}
+	
+	public void flushAck() {
+		if( mAckQueued ) sendAck();
 	}
 	
 	/**
 	 * Transmit as many packets as possible to the VPN.
 	 */
 	public void xmit() {
-		if( mOutBuffer.position() - mOutNextXmit <= 0 ) {
-			if(VpnNatEngine.sLog) Log.v("AziLink", "Tcp::xmit nothing to send - pos " + mOutBuffer.position() + " xmit - " + mOutNextXmit );
+		if( mOutBuffer.size() - mOutNextXmit <= 0 ) {
+			if(VpnNatEngine.sLog) Log.v("AziLink", "Tcp::xmit nothing to send - pos " + mOutBuffer.size() + " xmit - " + mOutNextXmit );
 			return;
 		}
 		
@@ -381,8 +824,19 @@ public class TcpDriverImpl implements TcpDriver {
 			// If SYN packet, only output the SYN+ACK
 			if(VpnNatEngine.sLog) Log.v("AziLink", "Tcp::xmit sending SYN+ACK" );
 			tp.setSynFlag();
+			// The window in a SYN is never scaled
+			tp.setWindowSize(Math.max(Math.min(Math.min(mInWindow, getBufferLimit()) - getMaxInLength(), 0xFFFF), 0));
+			noteWindowEdge(mInSeq + getMaxInLength() + tp.getWindowSize());
+			tp.addMssOption(mLocalMss);
+			if( mWindowScaling ) tp.addWindowScaleOption(mInShift);
+			if( mSackPermitted ) tp.addSackPermittedOption();
 			tp.complete();
+			if( mRttSeq < 0 && mRetries == 0 ) {
+				mRttSeq = 1;
+				mRttStart = mTimer.now();
+			}
 			mHost.write(tp);
+			tp.release();
 			return;
 		}
 		// If the only packet is FIN then output it alone
@@ -391,26 +845,126 @@ public class TcpDriverImpl implements TcpDriver {
 			tp.setFinFlag();
 			tp.complete();
 			mHost.write(tp);
+			ackSent(tp);
+			tp.release();
 			return;
 		}		
-		// Otherwise, output everything (except the FIN packet)
-		ByteBuffer data = mOutBuffer.asReadOnlyBuffer();
-		data.flip();
-		data.position(mOutNextXmit);
-		
-		// Exclude the FIN (if any)
-		if( mOutFinSeq != -2 ) data.limit(Math.min(mOutFinSeq, data.limit()));
-		
-		// Output everything we've got
-		while( data.hasRemaining() ) {			
-			tp.setData(data);
-			if( !data.hasRemaining() ) tp.setPshFlag();
+		// Otherwise, output whatever the congestion window and pacing allow (except the FIN packet)
+		int end = Math.min(getDataEnd(), Math.max(getCongestionLimit(), mOutNextXmit));
+		if( mPacing && end > mOutNextXmit ) {
+			int allow = getPaceAllowance();
+			if( end - mOutNextXmit > allow ) {
+				end = mOutNextXmit + allow;
+				if( !mTimerPace.isPending() ) {
+					int wait = (mSegmentSize - (mPaceCredit - allow) + mPaceRate - 1) / mPaceRate;
+					mTimer.setTimer(mTimerPace, Math.max(wait, 1));
+				}
+			}
+		}
+		int start = mOutNextXmit;
+		mOutNextXmit = sendRange(tp, start, end);
+		mPaceCredit -= mOutNextXmit - start;
+		tp.release();
+	}
+	
+	/**
+	 * End of the data the congestion window lets us have outstanding.  Each duplicate ACK during
+	 * recovery means a segment has left the network, so it inflates the window by one segment.
+	 * @return relative sequence number
+	 */
+	int getCongestionLimit() {
+		int cwnd = mCongestion.getWindow();
+		if( mInRecovery ) cwnd += mDupAcks * mSegmentSize;
+		return cwnd;
+	}
+	
+	/**
+	 * Top up the pacing credit, which refills at one congestion window per RTT and holds about a
+	 * millisecond's worth (the timer resolution).
+	 * @return bytes that may be sent now, in whole segments
+	 */
+	int getPaceAllowance() {
+		int rtt = getSmoothedRtt();
+		if( rtt < 0 ) return Integer.MAX_VALUE;		// nothing to pace against yet
+		long now = mTimer.now();
+		mPaceRate = Math.max(mCongestion.getWindow() / Math.max(rtt, 1), 1);
+		int burst = Math.max(2 * mSegmentSize, mPaceRate);
+		mPaceCredit = (int) Math.min(mPaceCredit + (now - mPaceLast) * mPaceRate, burst);
+		mPaceLast = now;
+		return Math.max(mPaceCredit, 0) / mSegmentSize * mSegmentSize;
+	}
+	
+	/**
+	 * End of the data in mOutBuffer, excluding the FIN (if any).
+	 * @return relative sequence number
+	 */
+	int getDataEnd() {
+		if( mOutFinSeq != -2 ) return Math.min(mOutFinSeq, mOutBuffer.size());
+		return mOutBuffer.size();
+	}
+	
+	/**
+	 * Send part of mOutBuffer as segments of at most mSegmentSize, unless the VPN is congested.
+	 * @param tp packet to send with (header already filled in by makePacket)
+	 * @param start first byte to send (relative)
+	 * @param end one past the last byte to send (relative)
+	 * @return one past the last byte sent (less than end if the VPN became congested)
+	 */
+	int sendRange(TcpPacket tp, int start, int end) {
+		tp.setSeq(mOutSeq + start);
+		while( start < end ) {
+			if( mHost.isBlocked() ) {
+				if(VpnNatEngine.sLog) Log.v("AziLink", "Tcp::xmit holding back data until the VPN drains" );
+				mHost.waitForLink(this);
+				break;
+			}
+			tp.setData(mOutBuffer, start, Math.min(end - start, mSegmentSize));
+			int len = tp.getDataLength();
+			if( start + len == end ) tp.setPshFlag();
 			tp.complete();
-			if(VpnNatEngine.sLog) Log.v("AziLink", "Tcp::xmit seq=" + mInSeq + ", off=" + mOutNextXmit + ", len=" + tp.getDataLength() );
+			if(VpnNatEngine.sLog) Log.v("AziLink", "Tcp::xmit seq=" + mInSeq + ", off=" + start + ", len=" + len );
 			mHost.write(tp);
-			mOutNextXmit += tp.getDataLength();
-			tp.setSeq(mOutSeq + mOutNextXmit);
+			ackSent(tp);
+			if( start < mOutHighXmit ) {
+				mRetransmitBytes += Math.min(len, mOutHighXmit - start);
+			} else if( mRttSeq < 0 ) {
+				// Only time new data (Karn's algorithm)
+				mRttSeq = start + len;
+				mRttStart = mTimer.now();
+			}
+			start += len;
+			tp.setSeq(mOutSeq + start);
 		}
+		if( start > mOutHighXmit ) mOutHighXmit = start;
+		return start;
+	}
+	
+	/**
+	 * Resend the first unacknowledged segment (stopping at the first SACKed range, if any).
+	 */
+	void retransmitFirst() {
+		int end = Math.min(Math.min(mOutHighXmit, getDataEnd()), mSegmentSize);
+		if( mSackCount > 0 ) end = Math.min(end, mSacked[0]);
+		if( end <= 0 ) return;
+		mRttSeq = -1;
+		TcpPacket tp = makePacket();
+		sendRange(tp, 0, end);
+		tp.release();
+	}
+	
+	/**
+	 * Resend only the data the host hasn't SACKed, up to the highest byte sent so far.
+	 */
+	void retransmitHoles() {
+		int end = Math.min(mOutHighXmit, getDataEnd());
+		TcpPacket tp = makePacket();
+		int pos = 0;
+		for( int i = 0 ; i <= mSackCount ; i++ ) {
+			int holeEnd = (i < mSackCount) ? Math.min(mSacked[i*2], end) : end;
+			if( pos < holeEnd && sendRange(tp, pos, holeEnd) < holeEnd ) break;	// VPN congested
+			if( i < mSackCount ) pos = Math.max(pos, mSacked[i*2+1]);
+		}
+		tp.release();
 	}
 
 	/**
@@ -427,47 +981,41 @@ public class TcpDriverImpl implements TcpDriver {
 		mOutSyn = true;
 		mInSyn = false;
 		mInSeq = (mInSeq+1) & 0xFFFFFFFF;
-		mInValid = mInValid.get(1,mInValid.size()+1);
-		mInBuffer.position(1);
-		mInBuffer.compact();
+		mInValid.consume(1);
+		mInBuffer.skip(1);
 		mBindComplete = true;
-		mOutBuffer.put((byte)0);
+		mOutBuffer.append((byte)0);
 		mRetries = 0;
-		setDestroyTimer(mTimeIdle);
-		setRetransmitTimer(mTimeRetransmit);
+		markActive();
+		setRetransmitTimer(getRetransmitTimeout());
 		if(VpnNatEngine.sLog) Log.v("AziLink", "onBindComplete calling tcp to xmit SYN" );
 		// xmit will transmit a syn packet to the host
 		xmit();
 	}
 
 	/**
-	 * Returns pending data for the TCP stream. 
-	 * @param data data to be sent over NIO
+	 * Writes pending data for the TCP stream straight out of the reassembly buffer.
+	 * @param ch socket to write to
+	 * @return bytes written
+	 * @throws IOException if the socket write fails
 	 */
-	public void read(ByteBuffer data) {
+	public int writeTo(GatheringByteChannel ch) throws IOException {
 		if( mInSyn ) {
 			if(VpnNatEngine.sLog) Log.v("AziLink","Tcp::read rejecting because SYN is still up" );
-			return;
+			return 0;
 		}
 		if( mInFinSeq == -1 ) {
 			if(VpnNatEngine.sLog) Log.v("AziLink","Tcp::read rejecting because FIN is completed" );
-			return;
+			return 0;
 		}
 		int len = getMaxInLength();
 		if( mInFinSeq != -2 ) len --;
-		mInBuffer.rewind();
-		mInBuffer.limit(len);
-		int maxlen = Math.min(mInBuffer.remaining(), data.remaining());
-		data.put(mInBuffer.array(), mInBuffer.position(), maxlen);
-		mInBuffer.position(mInBuffer.position() + maxlen);
-		
-		int bytesWritten = mInBuffer.position();
-		mInBuffer.compact();
-		mInValid = mInValid.get(bytesWritten, mInValid.size() + bytesWritten);
+		int bytesWritten = mInBuffer.writeTo(ch, len);
+		mInValid.consume(bytesWritten);
 		mInSeq = (mInSeq + bytesWritten) & 0xFFFFFFFF;
 		if( mInFinSeq != -2 ) mInFinSeq -= bytesWritten;
 		
-		if(VpnNatEngine.sLog) Log.v("AziLink","Tcp::read outputs " + bytesWritten + " bytes bitmap=" + mInValid.toString());
+		if(VpnNatEngine.sLog) Log.v("AziLink","Tcp::read outputs " + bytesWritten + " bytes ranges=" + mInValid.toString());
 		
 		boolean wantClose = false;
 		
@@ -479,11 +1027,20 @@ public class TcpDriverImpl implements TcpDriver {
 			mInValid.clear();
 			wantClose = true;			
 		}
+		if( mInValid.isEmpty() ) {
+			mInBuffer.release();
+			fitBuffer(mInBuffer);
+		}
 		
-		// Send an acknowledge packet
-		TcpPacket tp = makePacket();
-		tp.complete();
-		mHost.write(tp);
+		if( wantClose ) {
+			// The FIN needs acknowledging right away
+			sendAck();
+		} else {
+			// Otherwise only tell the host if the window opened up meaningfully (RFC 1122 SWS avoidance)
+			len = getMaxInLength();
+			long edge = mInSeq + len + ((long) getAdvertisedWindow(len) << mInShift);
+			if( (int)(edge - mLastWindowEdge) >= Math.min(mInWindow / 2, mSegmentSize) ) queueAck();
+		}
 		
 		if( wantClose ) {
 			mCallback.onClosed();
@@ -493,36 +1050,91 @@ public class TcpDriverImpl implements TcpDriver {
 			if(VpnNatEngine.sLog) Log.v("AziLink","Tcp::read decided to destroy the link");
 			setRetransmitTimer(0);
 			setDestroyTimer(mDeadTime);
-		}				
+		}
+		return bytesWritten;
+	}
+
+	/**
+	 * Reads from the TCP NIO stream straight into the output buffer, as much as the host's window allows.
+	 * @param ch socket to read from
+	 * @return bytes read, or -1 at end of stream
+	 * @throws IOException if the socket read fails
+	 */
+	public int readFrom(ScatteringByteChannel ch) throws IOException {
+		if( !canWrite() ) return 0;
+		boolean wasEmpty = mOutBuffer.size() == 0;
+		int bytesRead = mOutBuffer.readFrom(ch, mOutLimit - mOutBuffer.size());
+		if( bytesRead > 0 ) dataAdded(wasEmpty);
+		return bytesRead;
 	}
 
 	/**
-	 * Adds data read out of the TCP NIO stream.  May not pull the entire buffer -- check data's length
+	 * Adds data already read out of the TCP NIO stream.  May not pull the entire buffer -- check data's length
 	 * after this call.
 	 * @param data data received from NIO
 	 */
 	public void write(ByteBuffer data) {
+		if( !canWrite() ) return;
+		boolean wasEmpty = mOutBuffer.size() == 0;
+		int maxlen = Math.max(Math.min(data.remaining(), mOutLimit - mOutBuffer.size()), 0);
+		mOutBuffer.append(data.array(), data.position(), maxlen);
+		data.position(data.position()+maxlen);
+		dataAdded(wasEmpty);
+	}
+	
+	/**
+	 * Can the output buffer take data from NIO right now?
+	 * @return false if the link isn't up yet or is closing
+	 */
+	boolean canWrite() {
 		if( !mBindComplete ) {
 			if(VpnNatEngine.sLog) Log.v("AziLink","Tcp::write aborted bind not complete");
-			return;
+			return false;
 		}
 		if( mOutFinSeq != -2 ) {
 			if(VpnNatEngine.sLog) Log.v("AziLink","Tcp::write aborted since output buffer is closing");
-			return;
+			return false;
 		}
-		int maxlen = Math.min(data.remaining(), mOutBuffer.remaining());
-		mOutBuffer.put(data.array(), data.position(), maxlen);
-		data.position(data.position()+maxlen);
-		
+		return true;
+	}
+	
+	/**
+	 * New data was added to the output buffer, so send it.
+	 * @param wasEmpty whether the buffer was empty beforehand (the retransmit timer isn't running)
+	 */
+	void dataAdded(boolean wasEmpty) {
 		if(VpnNatEngine.sLog) Log.v("AziLink","Tcp::write added new data");
-		setDestroyTimer(mTimeIdle);
-		if( mOutBuffer.position() == 0 ) {
+		markActive();
+		if( wasEmpty ) {
 			mRetries = 0;
-			setRetransmitTimer(mTimeRetransmit);
+			setRetransmitTimer(getRetransmitTimeout());
 		}
 		xmit();
 	}
 
+	/**
+	 * VPN link is no longer congested.  Send anything xmit() held back, and let NIO read again.
+	 */
+	public void onLinkReady() {
+		if( !mBindComplete ) return;
+		xmit();
+		if( getWriteAvailableSize() != 0 ) {
+			mCallback.onRequestMoreData();
+		}
+	}
+	
+	public long getRetransmittedBytes() {
+		return mRetransmitBytes;
+	}
+	
+	public int getMinRtt() {
+		return (mSrtt < 0) ? -1 : mMinRtt;
+	}
+	
+	public int getSmoothedRtt() {
+		return (mSrtt < 0) ? -1 : (mSrtt >> 3);
+	}
+
 	/**
 	 * Return the src/dest ip/port that this link represents
 	 */
@@ -536,7 +1148,20 @@ public class TcpDriverImpl implements TcpDriver {
 	 */
 	void setDestroyTimer(int ms) {
 		if(VpnNatEngine.sLog) Log.v("AziLink", "Destroy timer for " + ms );
-		mTimerDestroyKey = mTimer.changeTimer(mTimerDestroyKey, ms, mTimerDestroyCallback); 
+		mIdleTimer = false;
+		mTimer.setTimer(mTimerDestroy, ms);
+	}
+	
+	/**
+	 * Called internally whenever data moves.  Only records the time; the idle timer is armed once
+	 * and checks the timestamp when it expires, so the timer queue isn't touched on every segment.
+	 */
+	void markActive() {
+		mLastActive = mTimer.now();
+		if( !mIdleTimer ) {
+			setDestroyTimer(mTimeIdle);
+			mIdleTimer = true;
+		}
 	}
 	
 	/**
@@ -546,10 +1171,10 @@ public class TcpDriverImpl implements TcpDriver {
 	void setRetransmitTimer(int ms) {
 		if( ms == 0 ) {
 			if(VpnNatEngine.sLog) Log.v("AziLink","Retransmit disabled");
-			mTimer.killTimer(mTimerRetransmitKey, mTimerRetransmitCallback);
+			mTimer.killTimer(mTimerRetransmit);
 		} else {
 			if(VpnNatEngine.sLog) Log.v("AziLink","Retransmit " + ms );
-			mTimerRetransmitKey = mTimer.changeTimer(mTimerRetransmitKey, ms, mTimerRetransmitCallback);
+			mTimer.setTimer(mTimerRetransmit, ms);
 		}
 	}
 	
@@ -558,25 +1183,68 @@ public class TcpDriverImpl implements TcpDriver {
 	 */
 	TimerCallback mTimerDestroyCallback = new TimerCallback() {
 		public void onTimer() {
+			if( mIdleTimer ) {
+				long left = mLastActive + mTimeIdle - mTimer.now();
+				if( left > 0 ) {
+					// There was activity since the timer was armed, so push the deadline out.
+					mTimer.setTimer(mTimerDestroy, (int) left);
+					return;
+				}
+			}
 			if(VpnNatEngine.sLog) Log.v("AziLink","onTimerDestroy");
 			destroy();
 		}
 	};
 	
+	/**
+	 * Callback issued when a delayed ACK is due.
+	 */
+	TimerCallback mTimerAckCallback = new TimerCallback() {
+		public void onTimer() {
+			queueAck();
+		}
+	};
+	
+	/**
+	 * Callback issued when pacing allows more data to go out.
+	 */
+	TimerCallback mTimerPaceCallback = new TimerCallback() {
+		public void onTimer() {
+			xmit();
+		}
+	};
+	
 	/**
 	 * Callback issued when it's time for a retransmission.
 	 */
 	TimerCallback mTimerRetransmitCallback = new TimerCallback() {
 		public void onTimer() {
+			if( mHost.isBlocked() ) {
+				// Nothing can go out anyway; don't count it against the link.
+				setRetransmitTimer(getRetransmitTimeout());
+				mHost.waitForLink(TcpDriverImpl.this);
+				return;
+			}
 			mRetries++;
 			if( mRetries >= mMaxRetries ) {
 				if(VpnNatEngine.sLog) Log.v("AziLink","onTimerRetransmit ran out of retries" );
 				destroy();
 			} else {
 				if(VpnNatEngine.sLog) Log.v("AziLink","onTimerRetransmit is at retry count " + mRetries );
-				setRetransmitTimer(mTimeRetransmit);
-				mOutNextXmit = 0;
-				xmit();
+				mRttSeq = -1;			// the timed segment may be resent, so its ACK would be ambiguous
+				mCongestion.onTimeout(mOutHighXmit);
+				mInRecovery = false;
+				mDupAcks = 0;
+				mRecover = mOutHighXmit;
+				setRetransmitTimer(getRetransmitTimeout());
+				if( mSackCount > 0 && mRetries <= mMaxSackRetries ) {
+					// The host has told us what it has, so only fill in the holes
+					retransmitHoles();
+				} else {
+					mSackCount = 0;
+					mOutNextXmit = 0;
+					xmit();
+				}
 			}
 		}
 	};
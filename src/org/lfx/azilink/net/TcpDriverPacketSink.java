@@ -25,4 +25,40 @@ package org.lfx.azilink.net;
  */
 public interface TcpDriverPacketSink {
 	void write(TcpPacket pkt);
+	
+	/**
+	 * Is the VPN congested?  Drivers should hold back data segments until it drains.
+	 * @return whether data should be held back
+	 */
+	boolean isBlocked();
+	
+	/**
+	 * Call the driver's onLinkReady() once the VPN is no longer congested.
+	 * @param driver driver that is holding back data
+	 */
+	void waitForLink(TcpDriver driver);
+	
+	/**
+	 * Call the driver's flushAck() at the end of this select pass.
+	 * @param driver driver with an ACK to send
+	 */
+	void queueAck(TcpDriver driver);
+	
+	/**
+	 * How much memory each buffer may use, given the global budget and how many buffers are in use.
+	 * @return bytes per buffer
+	 */
+	int getBufferShare();
+	
+	/**
+	 * A driver's buffers started or stopped being held below its windows by the budget.
+	 * @param throttled whether it's now throttled
+	 */
+	void setThrottled(boolean throttled);
+	
+	/**
+	 * Server that DNS connections to the redirect address are sent to.
+	 * @return ip address of dns server
+	 */
+	int getDnsServer();
 }
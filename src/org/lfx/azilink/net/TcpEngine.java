@@ -19,7 +19,8 @@ package org.lfx.azilink.net;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.HashSet;
 
 import android.util.Log;
 
@@ -30,17 +31,46 @@ import android.util.Log;
  *
  */
 public class TcpEngine implements TcpDriverPacketSink {
-	/** HashMap containing all active connections, indexed by ip/port */
-	HashMap< TcpKey, TcpDriver > mNat = new HashMap<TcpKey, TcpDriver>();
+	/** All active connections, indexed by ip/port */
+	FlowTable< TcpDriver > mNat = new FlowTable<TcpDriver>();
 	/** Pointer to the VPN engine */
 	VpnNatEngine mEngine;
+	/** Select worker that owns all of these connections */
+	SelectThread mShard;
 	/** Stores addresses of connections that were accepted, so we can automatically accept them again
 	 * without waiting for the TMobile timeout.  Entries last 30 seconds.
 	 */
 	TmAccept mTM = new TmAccept();
+	/** Connections holding back data until the VPN link drains */
+	HashSet< TcpDriver > mStalled = new HashSet<TcpDriver>();
+	/** Connections with an ACK to send at the end of this select pass */
+	ArrayList< TcpDriver > mAckQueue = new ArrayList<TcpDriver>();
+	/** View reused for every packet received from the VPN */
+	TcpPacket mView = new TcpPacket();
+	/** Bytes retransmitted by connections that have closed (read by the UI thread) */
+	volatile long mRetransmitted = 0;
+	/** Lowest RTT seen by any closed connection (ms, -1 if none yet; read by the UI thread) */
+	volatile int mRttMin = -1;
+	/** Sum and count of the smoothed RTTs of closed connections, for the mean (read by the UI thread) */
+	volatile long mRttSum = 0;
+	volatile int mRttCount = 0;
 	
-	TcpEngine( VpnNatEngine e ) {
+	/**
+	 * Fold a closed connection's round trip times into the shard's totals.
+	 * @param min lowest RTT the connection saw (ms, -1 if it never took a sample)
+	 * @param smoothed its smoothed RTT (ms, -1 if it never took a sample)
+	 */
+	void addRtt( int min, int smoothed ) {
+		if( min >= 0 && (mRttMin < 0 || min < mRttMin) ) mRttMin = min;
+		if( smoothed >= 0 ) {
+			mRttSum += smoothed;
+			mRttCount++;
+		}
+	}
+	
+	TcpEngine( VpnNatEngine e, SelectThread shard ) {
 		mEngine = e;
+		mShard = shard;
 	}
 	
 	/**
@@ -48,37 +78,42 @@ public class TcpEngine implements TcpDriverPacketSink {
 	 */
 	public void closeAll() {
 		if(VpnNatEngine.sLog) Log.v("AziLink","closeAll");
-		synchronized(mEngine.mSelectThread) {
-			while( !mNat.isEmpty() ) {
-				mNat.values().iterator().next().destroy();					
+		synchronized(mShard) {
+			ArrayList< TcpDriver > list = new ArrayList<TcpDriver>( mNat.size() );
+			mNat.values( list );
+			for( int i=0 ; i < list.size() ; i++ ) {
+				list.get( i ).destroy();
 			}
 		}
 	}
 	
 	/**
 	 * Parse a new packet received over the VPN.  Figure out which tcp link it belongs to, and dispatch.
-	 * @param d tcp packet
+	 * The packet is only valid for the duration of the call.
+	 * @param raw buffer holding the tcp packet
+	 * @param off offset of the packet within raw
+	 * @param len packet length
 	 */
-	void readRawPacket( byte[] d ) {
-		ByteBuffer bb = ByteBuffer.wrap( d );
-		int headerLength = (((int) bb.get(0)) & 0x0F) * 4;
+	void readRawPacket( ByteBuffer raw, int off, int len ) {
+		int headerLength = (((int) raw.get(off)) & 0x0F) * 4;
 		
-		if( d.length < headerLength + 20 ) {
+		if( len < headerLength + 20 ) {
 			if(VpnNatEngine.sLog) Log.v("AziLink", "Packet under minimum TCP length" );
 			return;
 		}
 		
-		TcpPacket pkt = new TcpPacket( d );
-		TcpKey nk = pkt.getAddresses();
+		TcpPacket pkt = mView;
+		pkt.wrap( raw, off, len );
 		
-		TcpDriver te = mNat.get( nk );
+		TcpDriver te = mNat.get( pkt.getSrcIp(), pkt.getDestIp(), pkt.getSrcPort(), pkt.getDestPort() );
 		if( te == null && pkt.isConnectRequest() ) {			
 			try {
 				if(VpnNatEngine.sLog) Log.v("AziLink","Engine::read forming new TCP link");
-				TcpToNio cb = new TcpToNio(this, mEngine.mSelectThread.mSelector);
-				te = new TcpDriverImpl(cb, mEngine.mTimers, this);
+				TcpToNio cb = new TcpToNio(this, mShard.mSelector);
+				te = new TcpDriverImpl(cb, mShard.mTimers, this, mEngine.mTcpWindow, mEngine.mTunMtu,
+						mEngine.newCongestionControl(), mEngine.mPacing);
 				cb.setDriver(te);
-				mNat.put( nk, te );
+				mNat.put( pkt.getSrcIp(), pkt.getDestIp(), pkt.getSrcPort(), pkt.getDestPort(), te );
 				te.newPacket(pkt);
 			} catch( IOException e ) {}			
 		} else if( te != null ) {
@@ -86,17 +121,106 @@ public class TcpEngine implements TcpDriverPacketSink {
 			te.newPacket(pkt);
 		} else {
 			if(VpnNatEngine.sLog) Log.v("AziLink", "Issuing a reset for an unknown TCP connection" );
-			TcpPacket tp = new TcpPacket( nk, pkt.getAck(), pkt.getSeq() + pkt.getDataLength(), 1 );
+			TcpPacket tp = new TcpPacket( pkt.getAddresses(), pkt.getAck(), pkt.getSeq() + pkt.getDataLength(), 1 );
 			tp.setResetFlag();
 			tp.complete();
-			mEngine.vpnWrite( tp.mRaw.array(), (short) tp.mPacketLength );							
+			mEngine.vpnWrite( tp.mRaw.array(), (short) tp.mPacketLength );
+			tp.release();
 		}
 	}
 
+	/**
+	 * Look up the connection for a key.
+	 * @param k addresses
+	 * @return connection, or null
+	 */
+	TcpDriver get( TcpKey k ) {
+		return mNat.get( k.mSrcIp, k.mDestIp, k.mSrcPort, k.mDestPort );
+	}
+	
+	/**
+	 * Drop a connection from the NAT table.
+	 * @param k addresses
+	 */
+	void remove( TcpKey k ) {
+		mNat.remove( k.mSrcIp, k.mDestIp, k.mSrcPort, k.mDestPort );
+	}
+	
 	/**
 	 * Callback from TcpDriver indicating that it wants to send a packet to the VPN
 	 */
 	public void write(TcpPacket pkt) {
 		mEngine.vpnWrite( pkt.mRaw.array(), (short) pkt.mPacketLength );
 	}
+	
+	/**
+	 * Is the VPN output queue congested?
+	 */
+	public boolean isBlocked() {
+		return !mEngine.isVpnWriteOk();
+	}
+	
+	/**
+	 * Remember a connection that has stopped sending until the VPN drains.
+	 */
+	public void waitForLink(TcpDriver driver) {
+		mStalled.add( driver );
+	}
+	
+	/**
+	 * Queue a connection's ACK until the end of this select pass.
+	 */
+	public void queueAck(TcpDriver driver) {
+		mAckQueue.add( driver );
+	}
+	
+	public int getBufferShare() {
+		return mEngine.getBufferShare();
+	}
+	
+	public int getDnsServer() {
+		return mEngine.getDnsServer();
+	}
+	
+	public void setThrottled(boolean throttled) {
+		if( throttled ) {
+			mEngine.mThrottledFlows.incrementAndGet();
+		} else {
+			mEngine.mThrottledFlows.decrementAndGet();
+		}
+	}
+	
+	/**
+	 * Send the ACKs queued during this select pass, one per connection.
+	 */
+	void flushAcks() {
+		int n = mAckQueue.size();
+		if( n == 0 ) return;
+		for( int i=0 ; i < n ; i++ ) {
+			mAckQueue.get( i ).flushAck();
+		}
+		mAckQueue.clear();
+	}
+	
+	/**
+	 * VPN output queue has drained (posted by VpnNatEngine.vpnResume).  Restart the stalled connections.
+	 */
+	Runnable mResume = new Runnable() {
+		public void run() {
+			if( mStalled.isEmpty() ) return;
+			if(VpnNatEngine.sLog) Log.v("AziLink","Resuming " + mStalled.size() + " stalled TCP links");
+			// Links may stall again while we're restarting them, so work from a copy.
+			TcpDriver[] list = mStalled.toArray( new TcpDriver[ mStalled.size() ] );
+			mStalled.clear();
+			for( int i=0 ; i < list.length ; i++ ) {
+				if( isBlocked() ) {
+					// Filled right back up; the rest wait for the next resume.
+					mStalled.add( list[i] );
+					continue;
+				}
+				// Skip links that were torn down while they waited.
+				if( get( list[i].getKey() ) == list[i] ) list[i].onLinkReady();
+			}
+		}
+	};
 }
@@ -35,10 +35,51 @@ public class TcpPacket {
 	 * @param window window size remaining
 	 */
 	TcpPacket( TcpKey nk, long seq, long ack, int window ) {
-		mRaw = ByteBuffer.allocate( 1500 );
+		this( PacketPool.sMtu, nk, seq, ack, window );
+	}
+	
+	/**
+	 * Build a new TCP packet with some preloaded values, in a buffer from the given pool.
+	 * 
+	 * @param pool pool to borrow the buffer from
+	 * @param nk src/dest ip/port (REVERSED!)
+	 * @param seq packet sequence number
+	 * @param ack packet acknowledge number
+	 * @param window window size remaining
+	 */
+	TcpPacket( PacketPool pool, TcpKey nk, long seq, long ack, int window ) {
+		mPool = pool;
+		mRaw = mPool.get();
 		setBlank(nk,seq,ack,window);
 	}
 	
+	/**
+	 * Build a new TCP packet in a private buffer.  Used for packets that are kept and resent
+	 * with only header changes, such as a connection's ACK template.
+	 * 
+	 * @param nk src/dest ip/port (REVERSED!)
+	 * @param seq packet sequence number
+	 * @param ack packet acknowledge number
+	 * @param window window size remaining
+	 * @param capacity buffer size
+	 */
+	TcpPacket( TcpKey nk, long seq, long ack, int window, int capacity ) {
+		mRaw = ByteBuffer.allocate( capacity );
+		setBlank(nk,seq,ack,window);
+	}
+	
+	/**
+	 * Hand the packet's buffer back to the pool.  Call once the packet has been written to the
+	 * VPN; the packet can't be used afterwards.  Does nothing for imported packets.
+	 */
+	void release() {
+		if( mPool != null ) {
+			mPool.release( mRaw );
+			mPool = null;
+			mRaw = null;
+		}
+	}
+	
 	// Reset a packet to be reused
 	/**
 	 * Reuse an old packet.  Clears out the data and sets new preloaded values.
@@ -50,6 +91,8 @@ public class TcpPacket {
 	 * 
 	 */
 	void setBlank( TcpKey nk, long seq, long ack, int window ) {
+		mOffset = 0;
+		mChecksumValid = false;
 		mTcpOffset = 20;
 		mDataOffset = mTcpOffset + 20;
 		mPacketLength = mDataOffset;
@@ -76,7 +119,7 @@ public class TcpPacket {
 	 * @return window size
 	 */
 	int getWindowSize() { 
-		return ((int) mRaw.getShort( mTcpOffset+14 )) & 0xFFFF; 
+		return ((int) mRaw.getShort( mOffset+mTcpOffset+14 )) & 0xFFFF; 
 	}
 	
 	/**
@@ -84,7 +127,7 @@ public class TcpPacket {
 	 * @param sz window size
 	 */
 	void setWindowSize( int sz ) { 
-		mRaw.putShort( mTcpOffset+14, (short) sz );
+		putTcpShort( 14, sz );
 	}
 	
 	/** Is this a reset packet? */
@@ -96,87 +139,106 @@ public class TcpPacket {
 	
 	/**
 	 * Complete a packet and prepare it to be sent.  Fills in the length parameters and computes
-	 * the packet checksum.
+	 * the packet checksum.  If only header fields changed since the last complete(), the
+	 * checksum was already patched up by the setters and there's nothing to do.
 	 */
 	void complete() {
-		mRaw.putShort( 2, (short) mPacketLength );
-		mRaw.putShort( 10, (short) 0 );				// zero header checksum for calculation
-		mRaw.putShort( mTcpOffset+16, (short) 0 );	// zero tcp checksum for calculation
+		if( mChecksumValid ) return;
+		int o = mOffset;
+		int tcp = o + mTcpOffset;
+		mRaw.putShort( o+2, (short) mPacketLength );
+		mRaw.putShort( o+10, (short) 0 );			// zero header checksum for calculation
+		mRaw.putShort( tcp+16, (short) 0 );		// zero tcp checksum for calculation
 		
 		byte[] buf = mRaw.array();
 		
-		// using the endian translation feature of bytebuffer is a significant timesink under heavy load,
-		// so just compute leftSum and rightSum separately.
-		
 		// ** IP header **
-		{
-			int leftSum = 0;
-			int rightSum = 0;
-			int sum = 0;
-			
-			int len = mTcpOffset;
-			
-			for( int i=0 ; i<len ; i+=2 ) {
-				leftSum += buf[i] & 0xFF;
-				rightSum += buf[i+1] & 0xFF;			
-			}
-			sum = (leftSum << 8) + rightSum;
-			
-			while( sum>>>16 != 0 ) {
-				sum = (sum & 0xFFFF) + (sum >>> 16);
-			}
-			sum = ~sum;
-			mRaw.putShort( 10, (short) sum );
-		}
+		mRaw.putShort( o+10, (short) Checksum.finish( Checksum.sum( buf, o, mTcpOffset, 0 ) ) );
 		
 		// ** TCP **
-		{
-			int leftSum = 0;
-			int rightSum = 0;
-			int sum = 0;
-			
-			int len = mPacketLength-1;
-			
-			for( int i=mTcpOffset ; i<len ; i+=2 ) {
-				leftSum += buf[i] & 0xFF;
-				rightSum += buf[i+1] & 0xFF;			
-			}
-			if( (mPacketLength&1) != 0) {
-				leftSum += buf[ mPacketLength-1 ] & 0xFF;
-			}
-			// src+dest IP address
-			for( int i=12 ; i<20 ; i+=2 ) {
-				leftSum += buf[i] & 0xFF;
-				rightSum += buf[i+1] & 0xFF;			
-			}
-			// protocol
-			rightSum += buf[9] & 0xFF;
-			
-			// form complete sum
-			sum = (leftSum << 8) + rightSum;
-			
-			// data length too
-			sum += mPacketLength - mTcpOffset;
-									
-			while( (sum>>>16) != 0 ) {
-				sum = (sum & 0xFFFF) + (sum >>> 16);
-			}
-			sum = ~sum;
-			mRaw.putShort( mTcpOffset+16, (short) sum );
+		// pseudo header: src+dest IP address, protocol, tcp length
+		long sum = Checksum.sum( buf, o+12, 8, 0 );
+		sum += buf[o+9] & 0xFF;
+		sum += mPacketLength - mTcpOffset;
+		sum = Checksum.sum( buf, tcp, mPacketLength - mTcpOffset, sum );
+		mRaw.putShort( tcp+16, (short) Checksum.finish( sum ) );
+		mChecksumValid = true;
+	}
+	
+	/**
+	 * Store a 16 bit TCP header field.  If the checksum is current, patch it instead of
+	 * invalidating it.
+	 * @param pos offset within the TCP header
+	 * @param v new value
+	 */
+	private void putTcpShort( int pos, int v ) {
+		int at = mOffset + mTcpOffset + pos;
+		if( mChecksumValid ) {
+			int ck = Checksum.update( mRaw.getShort( mOffset + mTcpOffset + 16 ) & 0xFFFF, mRaw.getShort( at ) & 0xFFFF, v & 0xFFFF );
+			mRaw.putShort( mOffset + mTcpOffset + 16, (short) ck );
+		}
+		mRaw.putShort( at, (short) v );
+	}
+	
+	/**
+	 * Store a 32 bit TCP header field, patching the checksum if it's current.
+	 * @param pos offset within the TCP header
+	 * @param v new value
+	 */
+	private void putTcpInt( int pos, int v ) {
+		int at = mOffset + mTcpOffset + pos;
+		if( mChecksumValid ) {
+			int ck = Checksum.update32( mRaw.getShort( mOffset + mTcpOffset + 16 ) & 0xFFFF, mRaw.getInt( at ), v );
+			mRaw.putShort( mOffset + mTcpOffset + 16, (short) ck );
 		}
+		mRaw.putInt( at, v );
 	}
 	
 	/**
-	 * Import an existing packet
+	 * Set bits in the TCP flags byte.
+	 * @param bits flags to set
+	 */
+	private void setFlags( int bits ) {
+		// Flags share a 16 bit word with the data offset
+		int word = mRaw.getShort( mOffset + mTcpOffset + 12 ) & 0xFFFF;
+		putTcpShort( 12, word | bits );
+	}
+	
+	/**
+	 * Import an existing packet.  The packet is a view into the provided array and is not copied,
+	 * so don't alter the array until the TcpPacket is no longer needed.
 	 * 
-	 * @param pkt packet
+	 * @param pkt buffer holding the packet
+	 * @param off offset of the IP header within pkt
+	 * @param len number of valid bytes from off
 	 */
-	TcpPacket( byte[] pkt ) {
-		mRaw = ByteBuffer.wrap( pkt );
-		mTcpOffset = (((int) mRaw.get(0)) & 0x0F) * 4;
-		mDataOffset = mTcpOffset + ((((int) mRaw.get( mTcpOffset + 12 )) & 0xF0) >> 2);			
-		mPacketLength = ((int) mRaw.getShort( 2 )) & 0xFFFF;
-		if( mPacketLength > pkt.length ) mPacketLength = pkt.length;
+	TcpPacket( byte[] pkt, int off, int len ) {
+		wrap( ByteBuffer.wrap( pkt ), off, len );
+	}
+	
+	/**
+	 * Build an empty view.  Call wrap() before using it.
+	 */
+	TcpPacket() {
+	}
+	
+	/**
+	 * Point this packet at a received packet, without copying or allocating anything, so one
+	 * view can be reused for every packet.  The same rules as the import constructor apply.
+	 * 
+	 * @param raw buffer holding the packet
+	 * @param off offset of the IP header within raw
+	 * @param len number of valid bytes from off
+	 */
+	void wrap( ByteBuffer raw, int off, int len ) {
+		mRaw = raw;
+		mPool = null;
+		mChecksumValid = false;
+		mOffset = off;
+		mTcpOffset = (((int) mRaw.get(off)) & 0x0F) * 4;
+		mDataOffset = mTcpOffset + ((((int) mRaw.get( off + mTcpOffset + 12 )) & 0xF0) >> 2);			
+		mPacketLength = ((int) mRaw.getShort( off + 2 )) & 0xFFFF;
+		if( mPacketLength > len ) mPacketLength = len;
 	}
 	
 	/**
@@ -184,7 +246,7 @@ public class TcpPacket {
 	 * @return protocol
 	 */
 	int getProtocol() {
-		return mRaw.get( 9 ) & 0xFF;
+		return mRaw.get( mOffset + 9 ) & 0xFF;
 	}
 	
 	/**
@@ -193,32 +255,65 @@ public class TcpPacket {
 	 */
 	TcpKey getAddresses() {
 		TcpKey nk = new TcpKey();
-		nk.mSrcIp = mRaw.getInt( 12 );
-		nk.mDestIp = mRaw.getInt( 16 );
-		nk.mSrcPort = ((int) mRaw.getShort( mTcpOffset )) & 0xFFFF;
-		nk.mDestPort = ((int) mRaw.getShort( mTcpOffset+2 )) & 0xFFFF;
+		nk.mSrcIp = getSrcIp();
+		nk.mDestIp = getDestIp();
+		nk.mSrcPort = getSrcPort();
+		nk.mDestPort = getDestPort();
 		return nk;
 	}
 	
+	/** @return source ip */
+	int getSrcIp() {
+		return mRaw.getInt( mOffset + 12 );
+	}
+	
+	/** @return destination ip */
+	int getDestIp() {
+		return mRaw.getInt( mOffset + 16 );
+	}
+	
+	/** @return source port */
+	int getSrcPort() {
+		return ((int) mRaw.getShort( mOffset + mTcpOffset )) & 0xFFFF;
+	}
+	
+	/** @return destination port */
+	int getDestPort() {
+		return ((int) mRaw.getShort( mOffset + mTcpOffset+2 )) & 0xFFFF;
+	}
+	
 	/**
 	 * Set the packet payload (copied)
 	 * @param src payload
 	 */
 	public void setData( ByteBuffer src ) {
-		mRaw.position(mDataOffset);		
+		mRaw.position(mOffset + mDataOffset);		
 		int len = Math.min(mRaw.remaining(), src.remaining());
 		int oldlimit = src.limit();
 		src.limit(src.position()+len);
 		mRaw.put(src);
 		src.limit(oldlimit);
-		mPacketLength = mRaw.position();
+		mPacketLength = mRaw.position() - mOffset;
+		mChecksumValid = false;
+	}
+	
+	/**
+	 * Set the packet payload (copied) from part of a ring buffer
+	 * @param src ring buffer
+	 * @param off offset of the payload from src's head
+	 * @param len payload length (truncated to fit the packet)
+	 */
+	void setData( RingBuffer src, int off, int len ) {
+		int start = mOffset + mDataOffset;
+		len = Math.min(len, mRaw.capacity() - start);
+		src.get(off, mRaw.array(), start, len);
+		mPacketLength = mDataOffset + len;
+		mChecksumValid = false;
 	}
 	
 	/** Set the reset flag */
 	public void setResetFlag() {
-		byte flag = mRaw.get( mTcpOffset + 13 );
-		flag |= 0x04;
-		mRaw.put( mTcpOffset+13, flag );
+		setFlags( 0x04 );
 	}
 	
 	/**
@@ -235,33 +330,153 @@ public class TcpPacket {
 	 */
 	public void getData(ByteBuffer dest) {
 		int maxlen = Math.min(dest.remaining(), mPacketLength - mDataOffset);
-		dest.put(mRaw.array(), mDataOffset, maxlen );		
+		dest.put(mRaw.array(), mOffset + mDataOffset, maxlen );		
+	}
+	
+	/**
+	 * Retrieve payload into a ring buffer (reassembly).
+	 * @param dest ring buffer
+	 * @param off offset from dest's head to put the payload at
+	 * @param len bytes to copy (no more than the payload)
+	 */
+	void getData(RingBuffer dest, int off, int len) {
+		dest.put(off, mRaw.array(), mOffset + mDataOffset, len);
 	}
 	
 	/** Set FIN flag */
 	public void setFinFlag() {
-		byte flag = mRaw.get( mTcpOffset + 13 );
-		flag |= 0x01;
-		mRaw.put( mTcpOffset+13, flag );
+		setFlags( 0x01 );
 	}
 	
 	/** Set PSH flag */
 	public void setPshFlag() {
-		byte flag = mRaw.get( mTcpOffset + 13 );
-		flag |= 0x08;
-		mRaw.put( mTcpOffset+13, flag );
+		setFlags( 0x08 );
 	}
 	
 	/** Set SYN flag */
 	public void setSynFlag() {
-		byte flag = mRaw.get( mTcpOffset + 13 );
-		flag |= 0x02;
-		mRaw.put( mTcpOffset+13, flag );
+		setFlags( 0x02 );
 	}
 	
 	/** Retrieve flags */
 	public int getFlags() {
-		return ((int) mRaw.get( mTcpOffset + 13 )) & 0xFF;
+		return ((int) mRaw.get( mOffset + mTcpOffset + 13 )) & 0xFF;
+	}
+	
+	/**
+	 * Find a TCP option in the header.
+	 * @param kind option kind
+	 * @return offset of the option's kind byte within mRaw, or -1 if the option isn't present
+	 */
+	int findOption( int kind ) {
+		byte[] raw = mRaw.array();
+		int i = mOffset + mTcpOffset + 20;
+		int end = mOffset + mDataOffset;
+		while( i < end ) {
+			int k = raw[i] & 0xFF;
+			if( k == 0 ) break;						// end of option list
+			if( k == 1 ) { i++; continue; }			// no-op
+			if( i+1 >= end ) break;
+			int len = raw[i+1] & 0xFF;
+			if( len < 2 || i+len > end ) break;		// malformed
+			if( k == kind ) return i;
+			i += len;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Get the window scale option from a SYN packet (RFC 7323).
+	 * @return shift count, or -1 if the option isn't present
+	 */
+	int getWindowScale() {
+		int i = findOption( 3 );
+		if( i < 0 || (mRaw.get( i+1 ) & 0xFF) != 3 ) return -1;
+		return mRaw.get( i+2 ) & 0xFF;
+	}
+	
+	/**
+	 * Get the maximum segment size option from a SYN packet.
+	 * @return MSS, or -1 if the option isn't present
+	 */
+	int getMss() {
+		int i = findOption( 2 );
+		if( i < 0 || (mRaw.get( i+1 ) & 0xFF) != 4 ) return -1;
+		return mRaw.getShort( i+2 ) & 0xFFFF;
+	}
+	
+	/**
+	 * Did the host offer selective acknowledgements in its SYN (RFC 2018)?
+	 * @return whether the SACK-permitted option is present
+	 */
+	boolean isSackPermitted() {
+		int i = findOption( 4 );
+		return i >= 0 && (mRaw.get( i+1 ) & 0xFF) == 2;
+	}
+	
+	/**
+	 * Get the SACK blocks from an ACK (RFC 2018).
+	 * @param edges receives left/right edge pairs, as raw 32-bit sequence numbers
+	 * @return number of blocks stored
+	 */
+	int getSackBlocks( int[] edges ) {
+		int i = findOption( 5 );
+		if( i < 0 ) return 0;
+		int n = Math.min( ((mRaw.get( i+1 ) & 0xFF) - 2) / 8, edges.length / 2 );
+		for( int b = 0 ; b < n ; b++ ) {
+			edges[b*2] = mRaw.getInt( i + 2 + b*8 );
+			edges[b*2+1] = mRaw.getInt( i + 6 + b*8 );
+		}
+		return n;
+	}
+	
+	/**
+	 * Append a SACK-permitted option (padded to 4 bytes) to a packet that has no payload yet.
+	 */
+	void addSackPermittedOption() {
+		int i = mOffset + mDataOffset;
+		mRaw.put( i, (byte) 1 );				// NOP
+		mRaw.put( i+1, (byte) 1 );				// NOP
+		mRaw.put( i+2, (byte) 4 );				// kind
+		mRaw.put( i+3, (byte) 2 );				// length
+		growHeader( 4 );
+	}
+	
+	/**
+	 * Append a maximum segment size option to a packet that has no payload yet.
+	 * @param mss segment size to advertise
+	 */
+	void addMssOption( int mss ) {
+		int i = mOffset + mDataOffset;
+		mRaw.put( i, (byte) 2 );				// kind
+		mRaw.put( i+1, (byte) 4 );				// length
+		mRaw.putShort( i+2, (short) mss );
+		growHeader( 4 );
+	}
+	
+	/**
+	 * Append a window scale option (padded to 4 bytes) to a packet that has no payload yet.
+	 * @param shift shift count to advertise
+	 */
+	void addWindowScaleOption( int shift ) {
+		int i = mOffset + mDataOffset;
+		mRaw.put( i, (byte) 1 );				// NOP
+		mRaw.put( i+1, (byte) 3 );				// kind
+		mRaw.put( i+2, (byte) 3 );				// length
+		mRaw.put( i+3, (byte) shift );
+		growHeader( 4 );
+	}
+	
+	/**
+	 * Extend the TCP header over option bytes that were just written at mDataOffset.
+	 * @param len number of option bytes (multiple of 4)
+	 */
+	private void growHeader( int len ) {
+		mDataOffset += len;
+		mPacketLength = mDataOffset;
+		byte doff = (byte)(((mDataOffset - mTcpOffset) / 4) << 4);
+		mRaw.put( mOffset + mTcpOffset + 12, doff );
+		mChecksumValid = false;
 	}
 	
 	/** Is this a connection request?  RST=0, SYN=1, FIN=0 */
@@ -274,7 +489,7 @@ public class TcpPacket {
 	 * @return sequence number
 	 */
 	public long getSeq() {
-		return ((long) mRaw.getInt( mTcpOffset + 4 )) & 0xFFFFFFFF;
+		return ((long) mRaw.getInt( mOffset + mTcpOffset + 4 )) & 0xFFFFFFFF;
 	}
 	
 	/**
@@ -282,7 +497,7 @@ public class TcpPacket {
 	 * @param seq sequence number
 	 */
 	public void setSeq(long seq) {
-		mRaw.putInt(mTcpOffset+4, (int) seq);		
+		putTcpInt( 4, (int) seq );
 	}
 	
 	/**
@@ -290,11 +505,29 @@ public class TcpPacket {
 	 * @return ack number
 	 */
 	public long getAck() {
-		return ((long) mRaw.getInt( mTcpOffset + 8 )) & 0xFFFFFFFF;
+		return ((long) mRaw.getInt( mOffset + mTcpOffset + 8 )) & 0xFFFFFFFF;
+	}
+	
+	/**
+	 * Set acknowledgement number
+	 * @param ack ack number
+	 */
+	public void setAck(long ack) {
+		putTcpInt( 8, (int) ack );
 	}
 	
+	/** Offset of the IP header within mRaw (0 unless this is a view of a larger buffer) */
+	int mOffset;
+	/** Offset to the TCP header, relative to mOffset */
 	int mTcpOffset;
+	/** Offset to the payload, relative to mOffset */
 	int mDataOffset;
+	/** Total packet length */
 	int mPacketLength;
+	/** Do the stored checksums match the packet?  Header setters keep them current incrementally. */
+	boolean mChecksumValid = false;
+	/** Buffer containing the raw packet */
 	ByteBuffer mRaw;
+	/** Pool the buffer was borrowed from (null if the packet was imported) */
+	PacketPool mPool;
 }
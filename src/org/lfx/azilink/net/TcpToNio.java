@@ -36,10 +36,8 @@ public class TcpToNio extends SocketHandler implements TcpDriverCallback, TimerC
 	SocketChannel mChannel;
 	/** select() in SelectThread */
 	Selector mSelect;
-	/** input buffer (NIO) */
-	ByteBuffer mInBuffer = ByteBuffer.allocate( 16 * 1024 );
-	/** output buffer (NIO) */
-	ByteBuffer mOutBuffer = ByteBuffer.allocate( 16 * 1024 );
+	/** First byte read while checking for T-Mobile's fake link (only allocated then).  Other data goes straight into the TCP driver. */
+	ByteBuffer mProbe;
 	/** Current socket state */
 	State mState = State.STATE_NONE;
 	/** TCP driver for this connection */
@@ -50,10 +48,8 @@ public class TcpToNio extends SocketHandler implements TcpDriverCallback, TimerC
 	TcpEngine mEngine;
 	/** Transfer statistics for all links */
 	TransferStatistics mStats;
-	/** Close the link when the final byte is transmitted? */
-	boolean mCloseWhenDoneXmit = false;
-	/** Timer key for T-Mobile workaround */
-	long mTimerKey;
+	/** Timer for T-Mobile workaround */
+	TimerHandle mTimer = new TimerHandle(this);
 	/** Where are we connection to? */
 	InetSocketAddress mAddr;
 	
@@ -136,7 +132,7 @@ public class TcpToNio extends SocketHandler implements TcpDriverCallback, TimerC
 				// TMobile workaround active -> delay the accept for nn seconds or until data received
 				mState = State.STATE_CONNECT_MAYBE;
 				if(VpnNatEngine.sLog) Log.v("AziLink","Nio::onConnect tmobile workaround" );
-				mTimerKey = mEngine.mEngine.mTimers.addTimer(mEngine.mEngine.mTMobileWorkaroundTimeout, this);
+				mEngine.mShard.mTimers.setTimer(mTimer, mEngine.mEngine.mTMobileWorkaroundTimeout);
 				return;
 			}
 		} else {			
@@ -156,18 +152,18 @@ public class TcpToNio extends SocketHandler implements TcpDriverCallback, TimerC
 		k.interestOps(k.interestOps() & ~SelectionKey.OP_READ);
 		if( mState == State.STATE_CONNECT_MAYBE ) {
 			// Is there actually any data?
-			mInBuffer.limit(1);
+			if( mProbe == null ) mProbe = ByteBuffer.allocate( 1 );
 			try {
-				int len = mChannel.read(mInBuffer);
+				int len = mChannel.read(mProbe);
 				if( len > 0 ) {
 					mStats.addBytes(len,0);
 				}
 			} catch (IOException e) {}
-			if( mInBuffer.position() == 0 ) {
+			if( mProbe.position() == 0 ) {
 				// 0 byte read indicates that the connection was lost
 				mState = State.STATE_NONE;
 				if(VpnNatEngine.sLog) Log.v("AziLink","TMobile failed onRead");
-				mEngine.mEngine.mTimers.killTimer(mTimerKey, this);
+				mEngine.mShard.mTimers.killTimer(mTimer);
 				mTCP.onBindComplete(false);
 				return;
 			} else {
@@ -176,25 +172,31 @@ public class TcpToNio extends SocketHandler implements TcpDriverCallback, TimerC
 				mState = State.STATE_CONNECTED;
 				if(VpnNatEngine.sLog) Log.v("AziLink","TMobile passwd onRead");
 				mKey.interestOps( SelectionKey.OP_READ );
-				mEngine.mEngine.mTimers.killTimer(mTimerKey, this);
+				mEngine.mShard.mTimers.killTimer(mTimer);
 				mTCP.onBindComplete(true);
+				mProbe.flip();
+				mTCP.write(mProbe);
+				mProbe = null;
 			}
 		}
 		if( mState != State.STATE_CONNECTED ) return;
 		
-		mInBuffer.limit(mInBuffer.capacity());
+		if( mEngine.isBlocked() ) {
+			// Leave OP_READ off and let the server's TCP window do the throttling.
+			if(VpnNatEngine.sLog) Log.v("AziLink","Nio::onRead disabled - VPN is congested");
+			mEngine.waitForLink(mTCP);
+			return;
+		}
 		
-		int maxLen = Math.min( mTCP.getWriteAvailableSize() - mInBuffer.position(), mInBuffer.remaining() );
+		int maxLen = mTCP.getWriteAvailableSize();
 		if( maxLen <= 0 ) {
 			if(VpnNatEngine.sLog) Log.v("AziLink", "Nio::onRead is returning because max read length is 0" );
 			return;
 		}
 		
-		mInBuffer.limit( maxLen );
-		
 		int bytesRead = -1;
 		try {
-			bytesRead = mChannel.read(mInBuffer);
+			bytesRead = mTCP.readFrom(mChannel);
 		} catch (IOException e) {}	
 		if( bytesRead < 0 ) {
 			if(VpnNatEngine.sLog) Log.v("AziLink","Nio::onRead lost");
@@ -203,12 +205,12 @@ public class TcpToNio extends SocketHandler implements TcpDriverCallback, TimerC
 			return;
 		}
 		mStats.addBytes(bytesRead,0);
-		if(VpnNatEngine.sLog) Log.v("AziLink","Nio::onRead pass to driver - maxLen="+maxLen+", bytesRead="+bytesRead+"inpos="+mInBuffer.position());
-		mInBuffer.flip();
-		mTCP.write( mInBuffer );
-		mInBuffer.clear();
+		if(VpnNatEngine.sLog) Log.v("AziLink","Nio::onRead passed to driver - maxLen="+maxLen+", bytesRead="+bytesRead);
 		
-		if( mTCP.getWriteAvailableSize() != 0 ) {
+		if( mEngine.isBlocked() ) {
+			if(VpnNatEngine.sLog) Log.v("AziLink","Nio::onRead disabled - VPN is congested");
+			mEngine.waitForLink(mTCP);
+		} else if( mTCP.getWriteAvailableSize() != 0 ) {
 			if(VpnNatEngine.sLog) Log.v("AziLink","Nio::onRead remains on");
 			k.interestOps(k.interestOps() | SelectionKey.OP_READ);
 		} else {
@@ -217,57 +219,28 @@ public class TcpToNio extends SocketHandler implements TcpDriverCallback, TimerC
 	}
 	
 	/**
-	 * The NIO link can now accept more data.  Transmit anything in our outbound buffer.  If the outbound
-	 * buffer is empty, then ask the TCP driver for something. 
+	 * The NIO link can now accept more data.  Transmit whatever the TCP driver still has pending.
 	 * @param k selection key
 	 */
 	public void onWrite( SelectionKey k ) {
 		k.interestOps(k.interestOps() & ~SelectionKey.OP_WRITE);
 		if( mState != State.STATE_CONNECTED ) return;		
-		if( mOutBuffer.position() == 0 ) {
+		if( mTCP.getReadAvailableSize() == 0 ) {
 			if(VpnNatEngine.sLog) Log.v("AziLink","Nio::onWrite called but no pending data");
 			return;
 		}
-		mOutBuffer.flip();
-		int bytesWritten = -1;
-		try {
-			bytesWritten = mChannel.write(mOutBuffer);
-		} catch (IOException e) {}
-		if( bytesWritten < 0 ) {
-			if(VpnNatEngine.sLog) Log.v("AziLink","Nio::onWrite failed");
-			mState = State.STATE_NONE;
-			mTCP.destroy();
-			return;
-		}
-		mStats.addBytes(0,bytesWritten);
-		mOutBuffer.compact();
-		if( mOutBuffer.position() != 0 ) {
-			if(VpnNatEngine.sLog) Log.v("AziLink","Nio::onWrite has more data, staying on");
-			k.interestOps(k.interestOps() | SelectionKey.OP_WRITE);
-		} else if( mTCP.getReadAvailableSize() != 0 ) {
-			if(VpnNatEngine.sLog) Log.v("AziLink","Nio::onWrite recursing into onNewDataAvailable");
-			onNewDataAvailable();
-		} else if( mCloseWhenDoneXmit ) {
-			if(VpnNatEngine.sLog) Log.v("AziLink","Nio::onWrite closing because xmit is finished");
-			mState = State.STATE_NONE;
-			mTCP.close();
-		}
+		onNewDataAvailable();
 	}
 
 	/**
-	 * TCP driver received end of stream.  Close the link once our output buffer has been finished.
+	 * TCP driver received end of stream.  The driver only reports this once everything before the FIN
+	 * has been written to the socket, so close right away.
 	 */
 	public void onClosed() {
 		if( mState != State.STATE_CONNECTED ) return;
-		
-		mCloseWhenDoneXmit = true;
-		if( mOutBuffer.position() == 0 ) {
-			if(VpnNatEngine.sLog) Log.v("AziLink","Nio::onClosed is closing immediately since no buffer");
-			mState = State.STATE_NONE;
-			mTCP.close();			
-		} else {
-			if(VpnNatEngine.sLog) Log.v("AziLink","Nio::onClosed is pending");
-		}
+		if(VpnNatEngine.sLog) Log.v("AziLink","Nio::onClosed is closing");
+		mState = State.STATE_NONE;
+		mTCP.close();
 	}
 
 	/**
@@ -279,11 +252,13 @@ public class TcpToNio extends SocketHandler implements TcpDriverCallback, TimerC
 			mChannel.close();
 		} catch (IOException e) {}
 		mState = State.STATE_NONE;
-		mEngine.mNat.remove(mTCP.getKey());
+		mEngine.remove(mTCP.getKey());
+		mEngine.mRetransmitted += mTCP.getRetransmittedBytes();
+		mEngine.addRtt(mTCP.getMinRtt(), mTCP.getSmoothedRtt());
 	}
 
 	/**
-	 * New data is available from the tcp driver.  If there's room, accept and transmit it.
+	 * New data is available from the tcp driver.  Write as much of it as the socket will take.
 	 */
 	public void onNewDataAvailable() {
 		if( mState != State.STATE_CONNECTED ) {
@@ -293,15 +268,9 @@ public class TcpToNio extends SocketHandler implements TcpDriverCallback, TimerC
 			}
 			return;	
 		}
-		if( mOutBuffer.remaining() == 0 ) {
-			if(VpnNatEngine.sLog) Log.v("AziLink","Nio::onNewData, but no data");
-			return;
-		}
-		mTCP.read(mOutBuffer);
 		int bytesWritten = -1;
-		mOutBuffer.flip();
 		try {
-			bytesWritten = mChannel.write(mOutBuffer);
+			bytesWritten = mTCP.writeTo(mChannel);
 		} catch( IOException err ) {}
 		if( bytesWritten < 0 ) {
 			if(VpnNatEngine.sLog) Log.v("AziLink","Nio::onNewData failed");
@@ -309,8 +278,7 @@ public class TcpToNio extends SocketHandler implements TcpDriverCallback, TimerC
 			return;
 		}
 		mStats.addBytes(0,bytesWritten);
-		mOutBuffer.compact();
-		if( mOutBuffer.position() != 0 ) {
+		if( mState == State.STATE_CONNECTED && mTCP.getReadAvailableSize() != 0 ) {
 			if(VpnNatEngine.sLog) Log.v("AziLink","Nio::onNewData could not write everything");
 			mKey.interestOps(mKey.interestOps() | SelectionKey.OP_WRITE);
 		} else {
@@ -0,0 +1,52 @@
+/* AziLink: USB tethering for Android
+ * Copyright (C) 2009 by James Perry
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.lfx.azilink.net;
+
+/**
+ * A single timer owned by whoever wants the callback.  The handle links itself directly into
+ * the TimerQueue's wheel, so adding, changing and killing a timer never allocates or searches.
+ *
+ * @author Jim Perry
+ *
+ */
+public class TimerHandle {
+	/** Callback to issue when the timer expires */
+	TimerCallback mCallback;
+	/** Absolute expiration time (elapsedRealtime ms) */
+	long mExpires;
+	/** Wheel slot this handle is linked into (-1 if not pending) */
+	int mSlot = -1;
+	/** Neighbours in the slot's list */
+	TimerHandle mPrev, mNext;
+
+	/**
+	 * Construct an idle timer.
+	 * @param cb callback to issue when the timer expires
+	 */
+	TimerHandle( TimerCallback cb ) {
+		mCallback = cb;
+	}
+
+	/**
+	 * Is the timer currently queued?
+	 * @return whether the timer will fire
+	 */
+	boolean isPending() {
+		return mSlot >= 0;
+	}
+}
@@ -17,113 +17,265 @@
 
 package org.lfx.azilink.net;
 
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.Map;
-import java.util.TreeMap;
-
 import android.os.SystemClock;
 
 /**
  * Queue of timers that the select thread will automatically dispatch.  When a timer expires, the OnTimer
  * callback will be called.
- * 
+ *
+ * Timers are kept in a hierarchical timing wheel with 1ms ticks.  Level 0 has 256 slots of 1ms, and
+ * levels 1-3 have 64 slots each covering 256ms, 16s and 17min, so the wheel spans about 18 hours.
+ * Timers further out are parked in the last level and re-filed when they come around.  A timer
+ * in a higher level is moved ("cascaded") down when level 0 wraps into its slot.  Adding, changing
+ * and killing a timer is O(1); each handle is re-filed at most once per level.
+ *
  * @author Jim Perry
  *
  */
 public class TimerQueue {
+	/** Slots in level 0 */
+	static final int sLevel0 = 256;
+	/** Slots in each higher level */
+	static final int sLevelN = 64;
+	/** Slot number used for timers that are in the middle of being dispatched */
+	static final int sFiring = sLevel0 + 3 * sLevelN;
+	/** Longest delay the wheel can hold (ms) */
+	static final long sMaxDelay = (1L << 26) - 1;
+
+	/** Heads of every slot list, level 0 first, plus the dispatch list at the end */
+	TimerHandle[] mSlots = new TimerHandle[ sFiring + 1 ];
+	/** Occupancy bitmaps: 4 words for level 0, then one word for each higher level */
+	long[] mBits = new long[ 7 ];
+	/** Next tick (elapsedRealtime ms) that hasn't been processed yet */
+	long mCurrent = SystemClock.elapsedRealtime();
+	/** Number of pending timers */
+	int mCount = 0;
+	/** Time the select loop last woke up (elapsedRealtime ms) */
+	long mClock = SystemClock.elapsedRealtime();
+
+	/**
+	 * Refresh the cached clock.  Called by the select loop every time it wakes up.
+	 */
+	void updateClock() {
+		mClock = SystemClock.elapsedRealtime();
+	}
+
 	/**
-	 * Map of all timers, indexed by the expiration time.
+	 * Coarse current time, as of the last select() wakeup.  Good enough for idle timestamps,
+	 * and much cheaper than asking the system on every packet.
+	 * @return cached elapsedRealtime (ms)
 	 */
-	TreeMap< Long, LinkedList< TimerCallback > > mTimers = new TreeMap< Long, LinkedList< TimerCallback > >();  
-	
+	long now() {
+		return mClock;
+	}
+
 	/**
-	 * Add a timer to the queue.
-	 * 
-	 * @param ms ms until timer expires.
-	 * @param cb callback to issue when timer expires
-	 * @return key that can be used to quickly alter the timer
+	 * Start a timer, or change when an already running timer expires.
+	 *
+	 * @param h timer handle
+	 * @param ms ms until timer expires
 	 */
-	long addTimer( int ms, TimerCallback cb ) {
-		long fullTime = ms + SystemClock.elapsedRealtime();
-		LinkedList< TimerCallback > entries = mTimers.get( fullTime );
-		if( entries == null ) {
-			entries = new LinkedList< TimerCallback >();
-			entries.add( cb );
-			mTimers.put( fullTime, entries );
+	void setTimer( TimerHandle h, int ms ) {
+		long now = SystemClock.elapsedRealtime();
+		if( h.mSlot >= 0 ) {
+			unlink( h );
 		} else {
-			entries.add( cb );
+			if( mCount == 0 && mCurrent < now ) mCurrent = now;		// nothing to catch up on
+			mCount++;
 		}
-		return fullTime;
+		h.mExpires = now + ms;
+		insert( h );
 	}
-	
+
 	/**
-	 * Change when a timer entry expires.
-	 * 
-	 * @param oldKey key for old timer
-	 * @param ms ms until timer expires
-	 * @param cb callback for this timer
-	 * @return new key for the timer
+	 * Remove a timer from the queue.  Does nothing if it isn't running.
+	 *
+	 * @param h timer handle
 	 */
-	long changeTimer( long oldKey, int ms, TimerCallback cb ) {
-		killTimer( oldKey, cb );
-		return addTimer( ms, cb );
+	void killTimer( TimerHandle h ) {
+		if( h.mSlot < 0 ) return;
+		unlink( h );
+		h.mSlot = -1;
+		mCount--;
 	}
-	
+
 	/**
-	 * Remove a timer from the queue.
-	 * 
-	 * @param key key for the timer
-	 * @param cb callback that was associated w/ this timer
+	 * Run all timers that have expired.
 	 */
-	void killTimer( long key, TimerCallback cb ) {
-		LinkedList< TimerCallback > entries = mTimers.get( key );
-		if( entries == null ) return;		
-		Iterator< TimerCallback > i = entries.iterator();
-		while( i.hasNext() ) {
-			TimerCallback tcb = i.next();
-			if( tcb == cb ) {
-				i.remove();
-				if( entries.isEmpty() ) {
-					mTimers.remove( key );
+	void runTimers() {
+		long now = SystemClock.elapsedRealtime();
+		while( mCurrent <= now ) {
+			int idx = (int)(mCurrent & (sLevel0-1));
+			if( idx == 0 ) cascade();
+
+			// Move the slot onto the dispatch list first, since the callback could start a new timer
+			// and we don't want to recurse.  Killing a timer on the dispatch list still works.
+			TimerHandle h = mSlots[ idx ];
+			if( h != null ) {
+				mSlots[ idx ] = null;
+				mBits[ idx >> 6 ] &= ~(1L << idx);
+				TimerHandle tail = h;
+				for( ;; ) {
+					tail.mSlot = sFiring;
+					if( tail.mNext == null ) break;
+					tail = tail.mNext;
+				}
+				tail.mNext = mSlots[ sFiring ];
+				if( tail.mNext != null ) tail.mNext.mPrev = tail;
+				mSlots[ sFiring ] = h;
+			}
+			mCurrent++;
+
+			while( (h = mSlots[ sFiring ]) != null ) {
+				unlink( h );
+				if( h.mExpires >= mCurrent ) {
+					// Parked beyond the end of the wheel; file it again.
+					insert( h );
+					continue;
 				}
-				return;
+				h.mSlot = -1;
+				mCount--;
+				h.mCallback.onTimer();
+			}
+
+			// Skip straight to the next occupied tick, but stop at the next level 0 wrap.
+			if( mCurrent > now ) break;
+			idx = (int)(mCurrent & (sLevel0-1));
+			if( idx != 0 ) {
+				long next = (mCurrent - idx) + nextLevel0( idx );
+				mCurrent = Math.min( next, now + 1 );
 			}
 		}
 	}
-	
+
 	/**
-	 * Run all timers that have expired.
+	 * Return the elapsedTime when the next timer will expire.  This may be earlier than any real
+	 * expiration if a higher level of the wheel needs to cascade first.
+	 * @return time of next timer expiration (-1 if none)
 	 */
-	void runTimers() {
-		// Read the timers off into a linked list first since the callback could start a new timer and 
-		// we don't want to recurse.
-		LinkedList< TimerCallback > cb = new LinkedList< TimerCallback >();
-		Iterator<Map.Entry<Long, LinkedList<TimerCallback>>> i = mTimers.entrySet().iterator();
-		long now = SystemClock.elapsedRealtime();
-		
-		while( i.hasNext() ) {
-			Map.Entry<Long, LinkedList<TimerCallback>> entry = i.next();
-			if( entry.getKey() > now ) break;
-			Iterator< TimerCallback > j = entry.getValue().iterator();
-			while( j.hasNext() ) {
-				cb.add( j.next() );
+	long nextTimer() {
+		if( mCount == 0 ) return -1;
+		if( mSlots[ sFiring ] != null ) return mCurrent;
+
+		int idx = (int)(mCurrent & (sLevel0-1));
+		if( idx == 0 ) {
+			// Sitting on a wrap that hasn't cascaded yet; those timers could be due before level 0's.
+			for( int level = 1 ; level <= 3 ; level++ ) {
+				int cur = (int)((mCurrent >>> (8 + 6 * (level-1))) & (sLevelN-1));
+				if( (mBits[ 3 + level ] & (1L << cur)) != 0 ) return mCurrent;
+				if( cur != 0 ) break;
 			}
-			i.remove();
 		}
-		
-		Iterator< TimerCallback > k = cb.iterator();
-		while( k.hasNext() ) {
-			k.next().onTimer();
+		long base = mCurrent - idx;
+		int n = nextLevel0( idx );
+		if( n < sLevel0 ) return base + n;
+
+		long best = Long.MAX_VALUE;
+		n = nextLevel0( 0 );
+		if( n < sLevel0 ) best = base + sLevel0 + n;		// wrapped around into the next revolution
+		for( int level = 1 ; level <= 3 ; level++ ) {
+			long bits = mBits[ 3 + level ];
+			if( bits == 0 ) continue;
+			int shift = 8 + 6 * (level-1);
+			long pos = mCurrent >>> shift;
+			// The slot at the current index was already cascaded unless we're sitting exactly on
+			// the tick that cascades it, so normally start looking one past it.
+			if( (mCurrent & ((1L << shift) - 1)) != 0 ) pos++;
+			long rot = Long.rotateRight( bits, (int)(pos & (sLevelN-1)) );
+			long when = (pos + Long.numberOfTrailingZeros( rot )) << shift;
+			if( when < best ) best = when;
 		}
+		return best;
 	}
-	
+
 	/**
-	 * Return the elapsedTime when the next timer will expire.
-	 * @return time of next timer expiration
+	 * Find the first occupied level 0 slot at or after idx.
+	 * @param idx first slot to check
+	 * @return slot number, or sLevel0 if there isn't one
 	 */
-	long nextTimer() {
-		if( mTimers.isEmpty() ) return -1;
-		return mTimers.firstKey();
+	private int nextLevel0( int idx ) {
+		int w = idx >> 6;
+		long bits = mBits[ w ] & (-1L << (idx & 63));
+		while( bits == 0 ) {
+			if( ++w == 4 ) return sLevel0;
+			bits = mBits[ w ];
+		}
+		return (w << 6) + Long.numberOfTrailingZeros( bits );
+	}
+
+	/**
+	 * Level 0 just wrapped, so move the timers in the current slot of each higher level down.
+	 */
+	private void cascade() {
+		for( int level = 1 ; level <= 3 ; level++ ) {
+			int shift = 8 + 6 * (level-1);
+			int idx = (int)((mCurrent >>> shift) & (sLevelN-1));
+			int slot = sLevel0 + (level-1) * sLevelN + idx;
+			TimerHandle h = mSlots[ slot ];
+			mSlots[ slot ] = null;
+			mBits[ 3 + level ] &= ~(1L << idx);
+			while( h != null ) {
+				TimerHandle next = h.mNext;
+				insert( h );
+				h = next;
+			}
+			if( idx != 0 ) break;		// the next level only turns over when this one wraps
+		}
+	}
+
+	/**
+	 * File a handle into the slot for its expiration time.
+	 * @param h timer handle (not linked anywhere)
+	 */
+	private void insert( TimerHandle h ) {
+		long expires = Math.max( h.mExpires, mCurrent );
+		long delta = expires - mCurrent;
+		int slot;
+		if( delta < sLevel0 ) {
+			slot = (int)(expires & (sLevel0-1));
+			mBits[ slot >> 6 ] |= 1L << slot;
+		} else {
+			int level;
+			if( delta < 1L << 14 ) {
+				level = 1;
+			} else if( delta < 1L << 20 ) {
+				level = 2;
+			} else {
+				level = 3;
+				if( delta > sMaxDelay ) expires = mCurrent + sMaxDelay;
+			}
+			int idx = (int)((expires >>> (8 + 6 * (level-1))) & (sLevelN-1));
+			slot = sLevel0 + (level-1) * sLevelN + idx;
+			mBits[ 3 + level ] |= 1L << idx;
+		}
+		h.mSlot = slot;
+		h.mPrev = null;
+		h.mNext = mSlots[ slot ];
+		if( h.mNext != null ) h.mNext.mPrev = h;
+		mSlots[ slot ] = h;
+	}
+
+	/**
+	 * Remove a handle from whatever slot list it's in.  Leaves mSlot alone.
+	 * @param h timer handle
+	 */
+	private void unlink( TimerHandle h ) {
+		int slot = h.mSlot;
+		if( h.mPrev != null ) {
+			h.mPrev.mNext = h.mNext;
+		} else {
+			mSlots[ slot ] = h.mNext;
+			if( h.mNext == null && slot != sFiring ) {
+				if( slot < sLevel0 ) {
+					mBits[ slot >> 6 ] &= ~(1L << slot);
+				} else {
+					int level = (slot - sLevel0) / sLevelN;
+					mBits[ 4 + level ] &= ~(1L << ((slot - sLevel0) & (sLevelN-1)));
+				}
+			}
+		}
+		if( h.mNext != null ) h.mNext.mPrev = h.mPrev;
+		h.mPrev = null;
+		h.mNext = null;
 	}
 }
@@ -20,7 +20,6 @@ package org.lfx.azilink.net;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 
@@ -39,8 +38,12 @@ public class UdpDriver extends SocketHandler implements TimerCallback {
 	UdpKey mAddr = new UdpKey();
 	/** VPN engine */
 	VpnNatEngine mEngine;
-	/** Timer key for the connection expiration */
-	long mTimerKey;
+	/** UDP engine (and shard) that owns this link */
+	UdpEngine mUdp;
+	/** Timer for the connection expiration */
+	TimerHandle mTimer = new TimerHandle(this);
+	/** Last time a packet went either way */
+	long mLastActive;
 	/** Last received packet. Used to generate ICMP unreachable and for ICMP ping translation. */
 	UdpPacket mLastPacket;
 	/** Is this an ICMP <-> UDP translated packet? */
@@ -58,27 +61,23 @@ public class UdpDriver extends SocketHandler implements TimerCallback {
 	/**
 	 * Construct a new UDP link
 	 * 
-	 * @param engine pointer to the vpn engine
+	 * @param udp pointer to the owning udp engine
 	 * @param nk addresses of both endpoints
-	 * @param pkt the first udp packet
 	 * @param icmp is this an icmp-in-udp packet?
 	 * @throws IOException
 	 */
-	public UdpDriver(VpnNatEngine engine, UdpKey nk, UdpPacket pkt, boolean icmp) throws IOException {
+	public UdpDriver(UdpEngine udp, UdpKey nk, boolean icmp) throws IOException {
 		super( DatagramChannel.open() );
 		mChannel = (DatagramChannel) super.mChannel;
-		mEngine = engine;
+		mUdp = udp;
+		mEngine = udp.mEngine;
 		mStats = mEngine;
 		mChannel.configureBlocking(false);
 		mIcmp = icmp;
 		mAddr = nk;
 	
+		// Queries to the DNS redirect address (192.168.56.1:53) go through the engine's DnsMux instead
 		int destIp = mAddr.mDestIp;
-		if( mAddr.mDestPort == 53 && mAddr.mDestIp == 0xC0A83801 ) {	// 192.168.56.1
-			// Redirect 192.168.56.1:53 to the actual dns server
-			if(VpnNatEngine.sLog) Log.v("AziLink", "Redirecting DNS packet");
-			destIp = VpnNatEngine.getDnsIp();			
-		}
 		
 		byte[] addr = new byte[4];
 		addr[0] = (byte)(destIp >> 24);
@@ -88,21 +87,32 @@ public class UdpDriver extends SocketHandler implements TimerCallback {
 				
 		if(VpnNatEngine.sLog) Log.v("AziLink", "Connect to foreign host (udp) " + InetAddress.getByAddress(addr).getHostAddress() + ":" + nk.mDestPort );		
 		mChannel.connect( new InetSocketAddress( InetAddress.getByAddress( addr ), nk.mDestPort ) );
-		mChannel.register( mEngine.mSelectThread.mSelector, SelectionKey.OP_READ, this );
+		mChannel.register( mUdp.mShard.mSelector, SelectionKey.OP_READ, this );
 		setTimer();
-		mLastPacket = pkt;
 	}
 	
 	/**
-	 * Restart the teardown timer
+	 * How long this link may sit idle before it's torn down.
+	 * @return idle time (ms)
 	 */
-	void setTimer() {
+	int getIdleTime() {
 		if( mAddr.mDestPort == 53 ) {
-			mTimerKey = mEngine.mTimers.changeTimer( mTimerKey, mTimeIdleDNS, this );
+			return mTimeIdleDNS;
 		} else if( mIcmp ) {
-			mTimerKey = mEngine.mTimers.changeTimer( mTimerKey, mTimeIdleIcmp, this );
+			return mTimeIdleIcmp;
 		} else {
-			mTimerKey = mEngine.mTimers.changeTimer( mTimerKey, mTimeIdle, this );
+			return mTimeIdle;
+		}
+	}
+	
+	/**
+	 * Note activity on the link.  The teardown timer is only armed once; onTimer() checks this
+	 * timestamp and re-arms if the link wasn't actually idle.
+	 */
+	void setTimer() {
+		mLastActive = mUdp.mShard.mTimers.now();
+		if( !mTimer.isPending() ) {
+			mUdp.mShard.mTimers.setTimer( mTimer, getIdleTime() );
 		}
 	}
 	
@@ -112,14 +122,11 @@ public class UdpDriver extends SocketHandler implements TimerCallback {
 	 */
 	public void readRawPacket(UdpPacket pkt) {
 		if(VpnNatEngine.sLog) Log.v("AziLink", "UDP Host->Foreign" );
-		mLastPacket = pkt;
-		mEngine.mBytesSent += pkt.getDataLength();
+		mLastPacket = pkt.copy(mLastPacket);		// pkt is a view into the VPN's receive buffer
+		mStats.addBytes(0,pkt.getDataLength());
 		setTimer();
-		ByteBuffer dat = ByteBuffer.allocate( pkt.getDataLength() );
-		dat.put( pkt.getData(), 0, pkt.getDataLength() );
-		dat.flip();
 		try {
-			int len = mChannel.write( dat );
+			int len = pkt.writeData( mChannel );
 			if( len > 0 ) {
 				mStats.addBytes(0,len);
 			}
@@ -133,15 +140,22 @@ public class UdpDriver extends SocketHandler implements TimerCallback {
 	 */
 	@Override public void onRead( SelectionKey k ) {
 		if(VpnNatEngine.sLog) Log.v("AziLink", "UDP Foreign->Host " + mAddr.mSrcPort + " and " + mAddr.mDestPort );
-		ByteBuffer dat = ByteBuffer.allocate( 1500 );
-		
+		// The headers only depend on the link, so they're written once and each datagram is
+		// read straight in behind them.
+		UdpPacket tp = mUdp.getReplyPacket();
+		tp.setBlank( mAddr );
 		if(mIcmp) {
 			if(VpnNatEngine.sLog) Log.v("AziLink", "UDP convert back to ICMP");
 			try {
-				int len = mChannel.read(dat);
+				int len = tp.readData(mChannel);
 				if( len > 0 ) mStats.addBytes(len,0);
 			} catch (IOException e) {}
-			IcmpPacket ip = new IcmpPacket(mLastPacket.getData());
+			// The reply is the original request (the payload of mLastPacket) turned around.
+			// Build it in the reply buffer; the datagram that was just read isn't needed.
+			int n = mLastPacket.getDataLength();
+			System.arraycopy( mLastPacket.mRaw.array(), mLastPacket.mOffset + mLastPacket.mDataOffset, tp.mRaw.array(), 0, n );
+			IcmpPacket ip = mUdp.mIcmpReply;
+			ip.wrap( tp.mRaw, 0, n );
 			ip.swapHosts();
 			ip.setType(IcmpPacket.TYPE_ICMP_ECHO_REPLY);
 			ip.setCode(IcmpPacket.PROTO_ICMP_ECHO_REPLY);
@@ -153,8 +167,7 @@ public class UdpDriver extends SocketHandler implements TimerCallback {
 		
 		try {
 			for( ;; ) {
-				dat.clear();
-				int rlen = mChannel.read( dat );
+				int rlen = tp.readData( mChannel );
 				if( rlen < 0 ) {
 					if(VpnNatEngine.sLog) Log.v("AziLink", "UDP read len was " + rlen );
 					return;
@@ -163,16 +176,12 @@ public class UdpDriver extends SocketHandler implements TimerCallback {
 					break;
 				}
 				mStats.addBytes(rlen, 0);
-				dat.flip();
-				mEngine.mBytesRecv += dat.limit();
+				mStats.addBytes(rlen, 0);
 				
 				if( !mEngine.isVpnWriteOk() ) return;		// just toss the packet
 				
-				UdpKey addr = mAddr;
-				UdpPacket tp = new UdpPacket( addr );
-				tp.setData( dat.array(), rlen );
 				tp.complete();
-				mEngine.vpnWrite( tp.mRaw.array(), (short) tp.mPacketLength );				
+				mEngine.vpnWrite( tp.mRaw.array(), (short) tp.mPacketLength );
 			}						
 		} catch (IOException e) {
 			if(VpnNatEngine.sLog) Log.v("AziLink","UDP exception, rewrite to ICMP");
@@ -182,9 +191,10 @@ public class UdpDriver extends SocketHandler implements TimerCallback {
 			IcmpPacket ip = new IcmpPacket( addr );
 			ip.setType(IcmpPacket.TYPE_ICMP_UNREACHABLE);
 			ip.setCode(IcmpPacket.PROTO_ICMP_UNREACHABLE_PORT);
-			ip.setData(mLastPacket.mRaw.array(), mLastPacket.mPacketLength);
+			ip.setData(mLastPacket.mRaw.array(), mLastPacket.mOffset, mLastPacket.mPacketLength);
 			ip.complete();
 			mEngine.vpnWrite( ip.mRaw.array(), (short) ip.mPacketLength );
+			ip.release();
 		}
 	}
 
@@ -192,8 +202,13 @@ public class UdpDriver extends SocketHandler implements TimerCallback {
 	 * Timer to teardown idle UDP links 
 	 */
 	public void onTimer() {
+		long left = mLastActive + getIdleTime() - mUdp.mShard.mTimers.now();
+		if( left > 0 ) {
+			mUdp.mShard.mTimers.setTimer( mTimer, (int) left );
+			return;
+		}
 		if(VpnNatEngine.sLog) Log.v("AziLink", "UDP timeout" );
-		mEngine.mUDP.close( this );		
+		mUdp.close( this );		
 	}
 }
 
@@ -19,8 +19,7 @@ package org.lfx.azilink.net;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.ArrayList;
 
 import android.util.Log;
 
@@ -32,16 +31,52 @@ import android.util.Log;
  */
 public class UdpEngine {
 	/**
-	 * Map of all connections, indexed by src/dest ip/port
+	 * Table of all connections, indexed by src/dest ip/port
 	 */
-	HashMap< UdpKey, UdpDriver > mNat = new HashMap<UdpKey, UdpDriver>();
+	FlowTable< UdpDriver > mNat = new FlowTable<UdpDriver>();
 	/**
 	 * Pointer to the NAT engine
 	 */
 	VpnNatEngine mEngine;
+	/**
+	 * Select worker that owns all of these connections
+	 */
+	SelectThread mShard;
+	/**
+	 * Views reused for every packet received from the VPN
+	 */
+	UdpPacket mView = new UdpPacket();
+	IcmpPacket mIcmpView = new IcmpPacket();
+	/**
+	 * Scratch key and packet for translating ICMP echo requests to UDP (the packet is allocated on first use)
+	 */
+	UdpKey mIcmpKey = new UdpKey();
+	UdpPacket mIcmpPacket;
+	/**
+	 * Packet that datagrams from the network are read into and sent to the VPN from, and a
+	 * view for building ICMP echo replies in its buffer (allocated on first use)
+	 */
+	UdpPacket mReply;
+	IcmpPacket mIcmpReply = new IcmpPacket();
+	/**
+	 * Shared upstream socket for queries to the DNS redirect address
+	 */
+	DnsMux mDns;
 	
-	UdpEngine( VpnNatEngine e ) {
+	UdpEngine( VpnNatEngine e, SelectThread shard ) {
 		mEngine = e;
+		mShard = shard;
+		mDns = new DnsMux( this );
+	}
+	
+	/**
+	 * Get the packet used to forward datagrams to the VPN.  It's shared by every link in this
+	 * shard, so it's only valid until the caller returns to the select loop.
+	 * @return reply packet (call setBlank() before using it)
+	 */
+	UdpPacket getReplyPacket() {
+		if( mReply == null ) mReply = new UdpPacket( mEngine.mPacketSize + 28 );
+		return mReply;
 	}
 	
 	/**
@@ -53,8 +88,8 @@ public class UdpEngine {
 			nt.mChannel.close();
 		} catch (IOException e) {
 		}
-		mEngine.mTimers.killTimer(nt.mTimerKey,nt);
-		mNat.remove( nt.mAddr );
+		mShard.mTimers.killTimer(nt.mTimer);
+		mNat.remove( nt.mAddr.mSrcIp, nt.mAddr.mDestIp, nt.mAddr.mSrcPort, nt.mAddr.mDestPort );
 	}	
 	
 	/**
@@ -62,57 +97,67 @@ public class UdpEngine {
 	 */
 	public void closeAll() {
 		//if(VpnNatEngine.sLog) Log.v("AziLink", "Close ALL" );
-		Iterator<UdpDriver> i = mNat.values().iterator();
-		while( i.hasNext() ) {
-			UdpDriver u = i.next();
+		ArrayList< UdpDriver > list = new ArrayList<UdpDriver>( mNat.size() );
+		mNat.values( list );
+		for( int i=0 ; i < list.size() ; i++ ) {
+			UdpDriver u = list.get( i );
 			try {
 				u.mChannel.close();
 			} catch (IOException e) {
 			}
-			i.remove();			
+			mNat.remove( u.mAddr.mSrcIp, u.mAddr.mDestIp, u.mAddr.mSrcPort, u.mAddr.mDestPort );
 		}
+		mDns.close();
 	}
 	
 	/**
-	 * Handle a new packet received from the VPN (dispatch to the UdpDriver)
-	 * @param d vpn packet
+	 * Handle a new packet received from the VPN (dispatch to the UdpDriver).  The packet is only
+	 * valid for the duration of the call.
+	 * @param raw buffer holding the vpn packet
+	 * @param off offset of the packet within raw
+	 * @param len packet length
 	 */
-	void readRawPacket( byte[] d ) {
-		ByteBuffer bb = ByteBuffer.wrap( d );
-		int headerLength = (((int) bb.get(0)) & 0x0F) * 4;
+	void readRawPacket( ByteBuffer raw, int off, int len ) {
+		byte[] d = raw.array();
+		int headerLength = (((int) d[off]) & 0x0F) * 4;
 		
-		int protocol = ((int) bb.get( 9 )) & 0xFF;
+		int protocol = ((int) d[off + 9]) & 0xFF;
 		boolean isIcmp = protocol == 1;
 		
-		if( d.length < headerLength + 8 ) {
+		if( len < headerLength + 8 ) {
 			if(VpnNatEngine.sLog) Log.v("AziLink", "Packet under minimum UDP length" );
 			return;
 		}
 		
 		UdpPacket pkt;
 		if( isIcmp ) {
-			IcmpPacket ip = new IcmpPacket(d);
+			IcmpPacket ip = mIcmpView;
+			ip.wrap(raw, off, len);
 			if(ip.getType() != IcmpPacket.TYPE_ICMP_ECHO_REQUEST ||
 					ip.getCode() != IcmpPacket.PROTO_ICMP_ECHO_REQUEST) return;
 			if(VpnNatEngine.sLog) Log.v("AziLink","Translate ICMP -> UDP");
-			UdpKey nk = new UdpKey();
-			IcmpKey ik = ip.getAddresses();
-			nk.mDestIp = ik.mSrcIp;
-			nk.mSrcIp = ik.mDestIp;
+			UdpKey nk = mIcmpKey;
+			nk.mDestIp = ip.getSrcIp();
+			nk.mSrcIp = ip.getDestIp();
 			nk.mDestPort = ip.getSequence() ^ ip.getId();
 			nk.mSrcPort = 7;
-			pkt = new UdpPacket( nk );		// this will reverse the host/port
-			pkt.setData(ip.mRaw.array(), ip.mPacketLength);
+			if( mIcmpPacket == null ) mIcmpPacket = new UdpPacket( mEngine.mPacketSize + 28 );
+			pkt = mIcmpPacket;
+			pkt.setBlank( nk );		// this will reverse the host/port
+			pkt.setData(d, off, ip.mPacketLength);
 		} else {
-			pkt = new UdpPacket( d );			
+			pkt = mView;
+			pkt.wrap( raw, off, len );
+			if( pkt.getDestPort() == 53 && pkt.getDestIp() == 0xC0A83801 ) {	// 192.168.56.1
+				mDns.query( pkt );
+				return;
+			}
 		}
-		UdpKey nk = pkt.getAddresses();		
-		
-		UdpDriver te = mNat.get( nk );
+		UdpDriver te = mNat.get( pkt.getSrcIp(), pkt.getDestIp(), pkt.getSrcPort(), pkt.getDestPort() );
 		if( te == null ) {			
 			try {
-				te = new UdpDriver( mEngine, nk, pkt, isIcmp );
-				mNat.put( te.mAddr, te );
+				te = new UdpDriver( this, pkt.getAddresses(), isIcmp );
+				mNat.put( te.mAddr.mSrcIp, te.mAddr.mDestIp, te.mAddr.mSrcPort, te.mAddr.mDestPort, te );
 				te.readRawPacket( pkt );
 			} catch( IOException e ) {}			
 		} else {
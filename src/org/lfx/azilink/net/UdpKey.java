@@ -31,7 +31,7 @@ public class UdpKey {
 		return mSrcIp==rk.mSrcIp && mDestIp==rk.mDestIp && mSrcPort==rk.mSrcPort && mDestPort==rk.mDestPort;
 	}
 	@Override public int hashCode() {
-		return ((mSrcPort&0xFFFF)<<16) | (mDestPort&0xFFFF);
+		return FlowTable.hash( FlowTable.packAddrs( mSrcIp, mDestIp ), FlowTable.packPorts( mSrcPort, mDestPort ) );
 	}
 	int mSrcIp = 0;
 	int mDestIp = 0;
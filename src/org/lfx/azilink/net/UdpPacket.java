@@ -17,7 +17,10 @@
 
 package org.lfx.azilink.net;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * Represents a single UDP packet
@@ -31,7 +34,26 @@ public class UdpPacket {
 	 * @param nk addresses to preload (reversed)
 	 */
 	UdpPacket( UdpKey nk ) {
-		mRaw = ByteBuffer.allocate( 3000 );
+		mPool = PacketPool.sLarge;
+		mRaw = mPool.get();
+		setBlank( nk );
+	}
+	
+	/**
+	 * Builds an empty packet in a private buffer, for a packet that's rebuilt over and over.
+	 * Call setBlank() before using it.
+	 * @param capacity buffer size
+	 */
+	UdpPacket( int capacity ) {
+		mRaw = ByteBuffer.allocate( capacity );
+	}
+	
+	/**
+	 * Reset the packet to an empty one with preloaded addresses (REVERSED!)
+	 * @param nk addresses to preload (reversed)
+	 */
+	void setBlank( UdpKey nk ) {
+		mOffset = 0;
 		mUdpOffset = 20;
 		mDataOffset = mUdpOffset + 8;
 		mPacketLength = mDataOffset;
@@ -39,86 +61,113 @@ public class UdpPacket {
 		mRaw.putShort( 0, (short) 0x4500 );	// len=20
 		mRaw.putInt( 4, 0 );		// no flags, no fragment, no id
 		mRaw.putShort( 8, (short) 0xFF11 );	// 255 TTL, UDP
+		setAddresses( nk );
+	}
+	
+	/**
+	 * Change the addresses of a packet built with setBlank() (REVERSED!), leaving the payload alone
+	 * @param nk addresses to load (reversed)
+	 */
+	void setAddresses( UdpKey nk ) {
 		mRaw.putInt( 12, nk.mDestIp );		// src
 		mRaw.putInt( 16, nk.mSrcIp );		// dest
 		mRaw.putShort( mUdpOffset, (short) nk.mDestPort );
 		mRaw.putShort( mUdpOffset+2, (short) nk.mSrcPort );		
 	}
 	
+	/**
+	 * Hand the packet's buffer back to the pool.  Call once the packet has been written to the
+	 * VPN; the packet can't be used afterwards.  Does nothing for imported packets.
+	 */
+	void release() {
+		if( mPool != null ) {
+			mPool.release( mRaw );
+			mPool = null;
+			mRaw = null;
+		}
+	}
+	
 	/**
 	 * Complete a UDP packet (fill in length and compute checksums)
 	 */
 	void complete() {
-		mRaw.putShort( 2, (short) mPacketLength );
-		mRaw.putShort( 10, (short) 0 );				// zero header checksum for calculation
-		mRaw.putShort( mUdpOffset+4, (short) (mPacketLength-mUdpOffset) );
-		mRaw.putShort( mUdpOffset+6, (short) 0 );	// zero udp checksum for calculation
+		int o = mOffset;
+		int udp = o + mUdpOffset;
+		mRaw.putShort( o+2, (short) mPacketLength );
+		mRaw.putShort( o+10, (short) 0 );				// zero header checksum for calculation
+		mRaw.putShort( udp+4, (short) (mPacketLength-mUdpOffset) );
+		mRaw.putShort( udp+6, (short) 0 );	// zero udp checksum for calculation
 		
 		byte[] buf = mRaw.array();
 		
 		// ** IP header **
-		{
-			int leftSum = 0;
-			int rightSum = 0;
-			int sum = 0;
-			
-			int len = mUdpOffset;
-			
-			for( int i=0 ; i<len ; i+=2 ) {
-				leftSum += buf[i] & 0xFF;
-				rightSum += buf[i+1] & 0xFF;			
-			}
-			sum = (leftSum << 8) + rightSum;
-			
-			while( sum>>>16 != 0 ) {
-				sum = (sum & 0xFFFF) + (sum >>> 16);
-			}
-			sum = ~sum;
-			mRaw.putShort( 10, (short) sum );
-		}
+		mRaw.putShort( o+10, (short) Checksum.finish( Checksum.sum( buf, o, mUdpOffset, 0 ) ) );
 		
-		// *** UDP
-		{
-			int leftSum = 0;
-			int rightSum = 0;
-			int sum = 0;
-			
-			int len = mPacketLength-1;
-			
-			for( int i=mUdpOffset ; i<len ; i+=2 ) {
-				leftSum += buf[i] & 0xFF;
-				rightSum += buf[i+1] & 0xFF;			
-			}
-			if( (mPacketLength&1) != 0) {
-				leftSum += buf[ mPacketLength-1 ] & 0xFF;
-			}
-			sum = (leftSum << 8) + rightSum;
-									
-			UdpKey nk = getAddresses();
-			sum += (nk.mSrcIp>>>16)&0xFFFF;
-			sum += (nk.mSrcIp)&0xFFFF;
-			sum += (nk.mDestIp>>>16)&0xFFFF;
-			sum += (nk.mDestIp)&0xFFFF;
-			sum += mPacketLength - mUdpOffset;
-			sum += getProtocol();
-			while( (sum>>>16) != 0 ) {
-				sum = (sum & 0xFFFF) + (sum >>> 16);
-			}
-			sum = ~sum;
-			mRaw.putShort( mUdpOffset+6, (short) sum );
-		}
+		// *** UDP (with the src/dest/protocol/length pseudo header)
+		long sum = Checksum.sum( buf, o+12, 8, 0 );
+		sum += buf[o+9] & 0xFF;
+		sum += mPacketLength - mUdpOffset;
+		sum = Checksum.sum( buf, udp, mPacketLength - mUdpOffset, sum );
+		int check = Checksum.finish( sum );
+		if( check == 0 ) check = 0xFFFF;		// zero means "no checksum" for UDP
+		mRaw.putShort( udp+6, (short) check );
 	}		
 	
 	/**
 	 * Import an existing packet (wraps the provided buffer, so don't alter it)
-	 * @param pkt packet to import (do not alter until UdpPacket is destroyed)
+	 * @param pkt buffer holding the packet (do not alter until UdpPacket is destroyed)
+	 * @param off offset of the IP header within pkt
+	 * @param len number of valid bytes from off
 	 */
-	UdpPacket( byte[] pkt ) {
-		mRaw = ByteBuffer.wrap( pkt );
-		mUdpOffset = (((int) mRaw.get(0)) & 0x0F) * 4;
+	UdpPacket( byte[] pkt, int off, int len ) {
+		wrap( ByteBuffer.wrap( pkt ), off, len );
+	}
+	
+	/**
+	 * Build an empty view.  Call wrap() before using it.
+	 */
+	UdpPacket() {
+	}
+	
+	/**
+	 * Point this packet at a received packet, without copying or allocating anything, so one
+	 * view can be reused for every packet.  Use copy() if the packet has to be kept.
+	 * @param raw buffer holding the packet (do not alter while the view is in use)
+	 * @param off offset of the IP header within raw
+	 * @param len number of valid bytes from off
+	 */
+	void wrap( ByteBuffer raw, int off, int len ) {
+		mRaw = raw;
+		mPool = null;
+		mOffset = off;
+		mUdpOffset = (((int) mRaw.get(off)) & 0x0F) * 4;
 		mDataOffset = mUdpOffset + 8;			
-		mPacketLength = ((int) mRaw.getShort( 2 )) & 0xFFFF;
-		if( mPacketLength > pkt.length ) mPacketLength = pkt.length;
+		mPacketLength = ((int) mRaw.getShort( off + 2 )) & 0xFFFF;
+		if( mPacketLength > len ) mPacketLength = len;
+	}
+	
+	/**
+	 * Make a private copy of the packet, for when it must outlive the buffer it was imported from.
+	 * @return copy of this packet
+	 */
+	UdpPacket copy() {
+		return copy( null );
+	}
+	
+	/**
+	 * Make a private copy of the packet, reusing an earlier copy's buffer if it's big enough.
+	 * @param reuse earlier copy (may be null)
+	 * @return copy of this packet (reuse, if it was used)
+	 */
+	UdpPacket copy( UdpPacket reuse ) {
+		if( reuse == null || reuse.mRaw.capacity() < mPacketLength ) {
+			byte[] d = new byte[ Math.max( mPacketLength, 128 ) ];
+			reuse = new UdpPacket();
+			reuse.mRaw = ByteBuffer.wrap( d );
+		}
+		System.arraycopy( mRaw.array(), mOffset, reuse.mRaw.array(), 0, mPacketLength );
+		reuse.wrap( reuse.mRaw, 0, mPacketLength );
+		return reuse;
 	}
 	
 	/**
@@ -126,7 +175,7 @@ public class UdpPacket {
 	 * @return protocol
 	 */
 	int getProtocol() {
-		return mRaw.get( 9 ) & 0xFF;
+		return mRaw.get( mOffset + 9 ) & 0xFF;
 	}
 	
 	/**
@@ -135,13 +184,33 @@ public class UdpPacket {
 	 */
 	UdpKey getAddresses() {
 		UdpKey nk = new UdpKey();
-		nk.mSrcIp = mRaw.getInt( 12 );
-		nk.mDestIp = mRaw.getInt( 16 );
-		nk.mSrcPort = ((int) mRaw.getShort( mUdpOffset )) & 0xFFFF;
-		nk.mDestPort = ((int) mRaw.getShort( mUdpOffset+2 )) & 0xFFFF;
+		nk.mSrcIp = getSrcIp();
+		nk.mDestIp = getDestIp();
+		nk.mSrcPort = getSrcPort();
+		nk.mDestPort = getDestPort();
 		return nk;
 	}
 	
+	/** @return source ip */
+	int getSrcIp() {
+		return mRaw.getInt( mOffset + 12 );
+	}
+	
+	/** @return destination ip */
+	int getDestIp() {
+		return mRaw.getInt( mOffset + 16 );
+	}
+	
+	/** @return source port */
+	int getSrcPort() {
+		return ((int) mRaw.getShort( mOffset + mUdpOffset )) & 0xFFFF;
+	}
+	
+	/** @return destination port */
+	int getDestPort() {
+		return ((int) mRaw.getShort( mOffset + mUdpOffset+2 )) & 0xFFFF;
+	}
+	
 	/**
 	 * Set the packet payload
 	 * 
@@ -149,10 +218,56 @@ public class UdpPacket {
 	 * @param len payload length
 	 */
 	public void setData( byte[] info, int len ) {
-		System.arraycopy( info, 0, mRaw.array(), mDataOffset, len );
+		setData( info, 0, len );
+	}
+	
+	/**
+	 * Set the packet payload from part of an array
+	 * 
+	 * @param info buffer holding the payload
+	 * @param off offset of the payload within info
+	 * @param len payload length
+	 */
+	public void setData( byte[] info, int off, int len ) {
+		System.arraycopy( info, off, mRaw.array(), mOffset + mDataOffset, len );
 		mPacketLength = mDataOffset + len;
 	}
 		
+	/**
+	 * Read one datagram from a channel straight into the payload area.  The headers are left
+	 * alone, so a packet built with setBlank() only needs complete() before it's sent.
+	 * @param ch channel to read from
+	 * @return bytes read (0 if nothing was waiting, -1 at end of stream)
+	 * @throws IOException
+	 */
+	int readData( ReadableByteChannel ch ) throws IOException {
+		mRaw.limit( mRaw.capacity() );
+		mRaw.position( mOffset + mDataOffset );
+		int len = ch.read( mRaw );
+		mPacketLength = mDataOffset + Math.max( len, 0 );
+		return len;
+	}
+	
+	/**
+	 * Write the payload straight out of the packet's buffer.  The buffer's position and limit
+	 * are restored afterwards, so this works on views of a shared receive buffer too.
+	 * @param ch channel to write to
+	 * @return bytes written
+	 * @throws IOException
+	 */
+	int writeData( WritableByteChannel ch ) throws IOException {
+		int pos = mRaw.position();
+		int lim = mRaw.limit();
+		try {
+			mRaw.limit( mOffset + mPacketLength );
+			mRaw.position( mOffset + mDataOffset );
+			return ch.write( mRaw );
+		} finally {
+			mRaw.limit( lim );
+			mRaw.position( pos );
+		}
+	}
+	
 	/**
 	 * Get the payload length
 	 * @return payload length
@@ -167,12 +282,20 @@ public class UdpPacket {
 	 */
 	public byte[] getData() {
 		byte[] dd = new byte[ getDataLength() ];
-		System.arraycopy( mRaw.array(), mDataOffset, dd, 0, dd.length );
+		System.arraycopy( mRaw.array(), mOffset + mDataOffset, dd, 0, dd.length );
 		return dd;
 	}
 	
+	/** Offset of the IP header within mRaw (0 unless this is a view of a larger buffer) */
+	int mOffset;
+	/** Offset to the UDP header, relative to mOffset */
 	int mUdpOffset;
+	/** Offset to the payload, relative to mOffset */
 	int mDataOffset;
+	/** Total packet length */
 	int mPacketLength;
+	/** Buffer containing the raw packet */
 	ByteBuffer mRaw;
+	/** Pool the buffer was borrowed from (null if the packet was imported) */
+	PacketPool mPool;
 }
@@ -27,10 +27,12 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 /**
- * Represents a link to the OpenVPN session.
+ * Represents a link to the OpenVPN session.  The link is owned by shard 0, but write() may be
+ * called from any shard.
  * 
  * @author Jim Perry
  *
@@ -38,14 +40,31 @@ import android.util.Log;
 public class VpnLink extends SocketHandler {
 	/** Pointer to the VPN engine */
 	VpnNatEngine mEngine;
+	/** Select worker that owns this link */
+	SelectThread mShard;
 	/** socket used for vpn communications */
 	SocketChannel mSocket;
-	/** Input and output buffers */
-	ByteBuffer mInput, mOutput;
+	/** Input buffer */
+	ByteBuffer mInput;
+	/** Output queue: a ring of [2 byte length] [packet data] frames waiting for the socket */
+	byte[] mQueue = new byte[ sQueueSize ];
+	/** Ring offset of the first queued byte */
+	int mQueueHead = 0;
+	/** Number of bytes queued */
+	int mQueueCount = 0;
+	/** Views of the two halves of the ring, reused for every gathering write */
+	ByteBuffer[] mQueueViews = new ByteBuffer[] { ByteBuffer.wrap( mQueue ), ByteBuffer.wrap( mQueue ) };
+	/** Is the kernel buffer full, so we're waiting on OP_WRITE? */
+	boolean mWaitWrite = false;
 	/** Timers for ping and ping_expire */
-	long mTimerKeyPing, mTimerKeyDie;
-	/** Should we accept write() commands? */
-	boolean mPauseOutput = false;
+	TimerHandle mTimerPing, mTimerDie;
+	/** Is the output queue congested?  Set above sQueueHigh and cleared below sQueueLow.
+	 * TCP stops sending and UDP drops incoming datagrams while it's set. */
+	volatile boolean mPauseOutput = false;
+	/** When did we last transmit anything?  Pings are only needed on an idle link. */
+	volatile long mLastWrite;
+	/** When did we last hear from OpenVPN? */
+	long mLastRead;
 	/** Magic packet sequence used for OpenVPN pings */
 	private int[] mPingMagick = new int[] { 0x2a, 0x18, 0x7b, 0xf3, 0x64, 0x1e, 
 			0xb4, 0xcb, 0x07, 0xed, 0x2d, 0x0a, 0x98, 0x1f, 0xc7, 0x48 };
@@ -57,13 +76,21 @@ public class VpnLink extends SocketHandler {
 	final static int sPingTime = 10000;			
 	/** If a ping isn't received within this time limit, then we die */
 	final static int sDieTime = 30000;			// 30 seconds
+	/** Size of the output queue (bytes) */
+	final static int sQueueSize = 256 * 1024;
+	/** Queue level that sets mPauseOutput (bytes) */
+	final static int sQueueHigh = sQueueSize * 3 / 4;
+	/** Queue level that clears mPauseOutput again and restarts stalled links (bytes) */
+	final static int sQueueLow = sQueueSize / 4;
+	/** Queue level at which write() flushes without waiting for the end of the select loop (bytes) */
+	final static int sQueueFlush = 64 * 1024;
 
 	/**
 	 * Transmit the openvpn configuration to the remote host.
 	 */
 	void respondWithConfig() {
 		if(VpnNatEngine.sLog) Log.v("AziLink", "vpnlink::respondWithConfig");
-		String response = "V4,dev-type tun,link-mtu 1502,tun-mtu 1500,proto TCPv4_SERVER,ifconfig 192.168.56.2 192.168.56.1";
+		String response = "V4,dev-type tun,link-mtu " + (mEngine.mTunMtu + 2) + ",tun-mtu " + mEngine.mTunMtu + ",proto TCPv4_SERVER,ifconfig 192.168.56.2 192.168.56.1";
 		CharBuffer cb = CharBuffer.wrap(response);
 		Charset cs = Charset.forName("ISO-8859-1");
 		ByteBuffer bb = ByteBuffer.allocate(response.length()*2 + mConfigMagick.length + 1 );
@@ -77,11 +104,17 @@ public class VpnLink extends SocketHandler {
 	}
 	
 	/**
-	 * Send an OpenVPN ping packet
+	 * Send an OpenVPN ping packet if nothing else has been sent for a while.  Writes don't touch
+	 * the timer (they can come from other shards), so just re-arm if the link wasn't idle.
 	 */
 	TimerCallback mPingCallback = new TimerCallback() {
 		public void onTimer() {
 			if( !mSocket.isConnected() ) return;
+			long idle = SystemClock.elapsedRealtime() - mLastWrite;
+			if( idle < sPingTime ) {
+				mShard.mTimers.setTimer( mTimerPing, (int)(sPingTime - idle) );
+				return;
+			}
 			byte[] ping = new byte[ mPingMagick.length ];
 			for( int i=0 ; i < mPingMagick.length ; i++ ) {
 				ping[i] = (byte) mPingMagick[i];
@@ -92,11 +125,39 @@ public class VpnLink extends SocketHandler {
 		}		
 	};
 	
+	/**
+	 * Enable OP_WRITE on shard 0 once the kernel buffer is full.
+	 */
+	Runnable mEnableWrite = new Runnable() {
+		public void run() {
+			try {
+				mSocket.register( mShard.mSelector, SelectionKey.OP_WRITE | SelectionKey.OP_READ, VpnLink.this );
+			} catch (ClosedChannelException e) {
+				mEngine.lostServerLink( VpnLink.this );
+			}
+		}
+	};
+	
+	/**
+	 * Report the link as lost on shard 0.
+	 */
+	Runnable mLost = new Runnable() {
+		public void run() {
+			mEngine.lostServerLink( VpnLink.this );
+		}
+	};
+	
 	/**
 	 * Teardown the OpenVPN connection due to ping timeout.
 	 */
 	TimerCallback mDieCallback = new TimerCallback() {
 		public void onTimer() {
+			long idle = mShard.mTimers.now() - mLastRead;
+			if( idle < sDieTime ) {
+				// Heard from OpenVPN since the timer was armed; wait out the rest.
+				mShard.mTimers.setTimer( mTimerDie, (int)(sDieTime - idle) );
+				return;
+			}
 			if(mEngine.mPinger) {
 				Log.e("AziLink", "Did not receive a ping for 30 seconds from OpenVPN!  Assuming dead link..");
 				mEngine.lostServerLink( VpnLink.this );
@@ -111,14 +172,22 @@ public class VpnLink extends SocketHandler {
 	 * Reset the ping timer
 	 */
 	void setPingTimer() {
-		mTimerKeyPing = mEngine.mTimers.changeTimer( mTimerKeyPing, sPingTime, mPingCallback );
+		mShard.mTimers.setTimer( mTimerPing, sPingTime );
 	}
 	
 	/**
 	 * Reset the die timer
 	 */
 	void setDieTimer() {
-		mTimerKeyDie = mEngine.mTimers.changeTimer( mTimerKeyDie, sDieTime, mDieCallback );
+		mLastRead = mShard.mTimers.now();
+		mShard.mTimers.setTimer( mTimerDie, sDieTime );
+	}
+	
+	/**
+	 * Note that OpenVPN is alive.  Just a timestamp; the die timer checks it when it fires.
+	 */
+	void markAlive() {
+		mLastRead = mShard.mTimers.now();
 	}
 	
 	/**
@@ -131,28 +200,35 @@ public class VpnLink extends SocketHandler {
 	VpnLink( VpnNatEngine engine, SelectableChannel ch ) throws ClosedChannelException {
 		super( ch );
 		mEngine = engine;
+		mShard = engine.mShards[0];
 		mSocket = (SocketChannel) ch;
 		mPauseOutput = false;
+		mLastWrite = SystemClock.elapsedRealtime();
+		mTimerPing = new TimerHandle( mPingCallback );
+		mTimerDie = new TimerHandle( mDieCallback );
 		
-		mSocket.register( mEngine.mSelectThread.mSelector, SelectionKey.OP_READ, this );
+		mSocket.register( mShard.mSelector, SelectionKey.OP_READ, this );
 		mInput = ByteBuffer.allocate( mEngine.mPacketSize+100 );
-		mOutput = ByteBuffer.allocate( mEngine.mPacketSize+100 );
 		
 		setDieTimer();
 		setPingTimer();
 	}
 	
 	/**
-	 * Test whether this packet contains an openvpn magic packet.  Surely there is a better way...
+	 * Test whether this packet contains an openvpn magic packet.  Callers check the first byte
+	 * themselves, since IPv4 packets never start with either magic byte (0x2a/0x28 would be
+	 * IPv2), so the full compare only runs for real magic packets.
 	 * 
-	 * @param d packet
+	 * @param d buffer holding the packet
+	 * @param off offset of the packet within d
+	 * @param len packet length
 	 * @param magick magic sequence
 	 * @return whether it's a magic packet
 	 */
-	private boolean comparePacket( byte[] d, int[] magick ) {
-		if( d.length < magick.length ) return false;
+	private boolean comparePacket( byte[] d, int off, int len, int[] magick ) {
+		if( len < magick.length ) return false;
 		for( int i=0 ; i < magick.length ; i++ ) {
-			if( (d[i]&0xFF) != magick[i] ) return false;
+			if( (d[off+i]&0xFF) != magick[i] ) return false;
 		}
 		return true;
 	}
@@ -170,7 +246,7 @@ public class VpnLink extends SocketHandler {
 			return;
 		}
 		
-		setDieTimer();
+		markAlive();
 		
 		mInput.flip();
 		mInput.order( ByteOrder.BIG_ENDIAN );
@@ -184,16 +260,19 @@ public class VpnLink extends SocketHandler {
 				mInput.reset();
 				break;
 			}			
-			byte[] packet = new byte[ packetLength ];
-			mInput.get( packet );
-			if( comparePacket( packet, mPingMagick ) ) {
+			// Hand out a view of the receive buffer rather than copying the packet out.
+			byte[] packet = mInput.array();
+			int off = mInput.arrayOffset() + mInput.position();
+			mInput.position( mInput.position() + packetLength );
+			int first = packetLength > 0 ? packet[off] & 0xFF : -1;
+			if( first == mPingMagick[0] && comparePacket( packet, off, packetLength, mPingMagick ) ) {
 				if(VpnNatEngine.sLog) Log.v("AziLink", "Ping packet" );
-				setDieTimer();
+				markAlive();
 				continue;
 			}
-			if( comparePacket( packet, mConfigMagick ) ) {				
-				if( packet.length == mConfigMagick.length+1 &&
-						packet[mConfigMagick.length] == 0 ) {
+			if( first == mConfigMagick[0] && comparePacket( packet, off, packetLength, mConfigMagick ) ) {				
+				if( packetLength == mConfigMagick.length+1 &&
+						packet[off+mConfigMagick.length] == 0 ) {
 					// The last byte is the command -- zero is configuration request
 					respondWithConfig();
 				} else {
@@ -202,7 +281,7 @@ public class VpnLink extends SocketHandler {
 				continue;
 			}
 			if(VpnNatEngine.sLog) Log.v("AziLink", "vpnlink::onread upload packet of length " + packetLength );
-			mEngine.vpnRead( packet );
+			mEngine.vpnRead( mInput, off, packetLength );
 		}
 		mInput.compact();
 		
@@ -220,67 +299,93 @@ public class VpnLink extends SocketHandler {
 	 * @return whether we can accept data
 	 */
 	public boolean isWriteOk() {
-		return mOutput.position() == 0;
+		return !mPauseOutput;
 	}
 
 	/**
-	 * Transmit a packet to the host.  If the transmit buffer is full, then the entire packet will be
-	 * dropped.  This function will never partially transmit a buffer.
+	 * Queue a packet for the host.  Packets are sent in batches by flush(), which every shard calls
+	 * before it blocks in select().  If the queue can't hold the whole packet, then the entire packet
+	 * is dropped (tail drop) and counted in the engine's mVpnDropped.  A packet is never partially queued.
 	 * 
 	 * @param d packet
 	 * @param length length of packet
 	 */
-	public void write( byte[] d, short length ) {
-		if( mPauseOutput ) {
-			if(VpnNatEngine.sLog) Log.v("AziLink", "write dropping packet in vpnlink" );
+	public synchronized void write( byte[] d, short length ) {
+		int len = length & 0xFFFF;
+		if( mQueueCount + len + 2 > sQueueSize ) {
+			mEngine.mVpnDropped.incrementAndGet();
+			if(VpnNatEngine.sLog) Log.v("AziLink", "write dropping packet in vpnlink (queue full)" );
 			return;
 		}
-		setPingTimer();
-		mOutput.order( ByteOrder.BIG_ENDIAN );
-		mOutput.putShort( (short)(length) );
-		mOutput.put( d, 0, length );
-		mOutput.flip();
+		if(VpnNatEngine.sLog) Log.v("AziLink", "vpnlink::write queue " + len + " packet" );
+		int tail = (mQueueHead + mQueueCount) % sQueueSize;
+		mQueue[ tail ] = (byte)(len >> 8);
+		mQueue[ (tail + 1) % sQueueSize ] = (byte) len;
+		tail = (tail + 2) % sQueueSize;
+		int first = Math.min( len, sQueueSize - tail );
+		System.arraycopy( d, 0, mQueue, tail, first );
+		System.arraycopy( d, first, mQueue, 0, len - first );
+		mQueueCount += len + 2;
+		if( mQueueCount >= sQueueHigh ) mPauseOutput = true;
+		
+		// Don't let one busy pass through the select loop fill the whole queue.
+		if( mQueueCount >= sQueueFlush ) flush();
+	}
+	
+	/**
+	 * Send as much of the output queue as the kernel will take, in a single gathering write.
+	 * If some of it is left over, OP_WRITE is enabled and onWrite() finishes the job.
+	 * May be called from any shard.
+	 */
+	public synchronized void flush() {
+		if( mWaitWrite || mQueueCount == 0 ) return;
 		try {
-			if(VpnNatEngine.sLog) Log.v("AziLink", "vpnlink::write transmit " + length + " packet" );
-			if( mSocket.write( mOutput ) < 0 ) {
-				mEngine.lostServerLink( this );
-				if(VpnNatEngine.sLog) Log.v("AziLink", "vpnlink::write failed write" );
-				return;
+			if( !drain() ) {
+				if(VpnNatEngine.sLog) Log.v("AziLink", "vpnlink::flush kernel buffer is full -- waiting for OP_WRITE" );
+				mWaitWrite = true;
+				mShard.post( mEnableWrite );
 			}
 		} catch (IOException e) {
-			mEngine.lostServerLink( this );
-			if(VpnNatEngine.sLog) Log.v("AziLink", "vpnlink::write failed write exception" );
-			return;
+			mShard.post( mLost );
+			if(VpnNatEngine.sLog) Log.v("AziLink", "vpnlink::flush failed write exception" );
 		}
-		if( mOutput.remaining() == 0 ) {
-			mOutput.clear();
-			return;
-		}
-		if(VpnNatEngine.sLog) Log.v("AziLink", "vpnlink::write has exceeded buffer -- pausing output" );
-		mPauseOutput = true;
-		// Kernel buffer is full -> have some remaining data.
-		try {
-			mSocket.register( mEngine.mSelectThread.mSelector, SelectionKey.OP_WRITE | SelectionKey.OP_READ, this );
-		} catch (ClosedChannelException e) {
-			mEngine.lostServerLink( this );
-		}		
 	}
 	
 	/**
-	 * NIO indicates that a write will succeed.  If anything's in the overflow buffer, then transmit it to the host
+	 * Write the queue to the socket.
+	 * @return whether the queue was emptied
+	 * @throws IOException
 	 */
-	public void onWrite( SelectionKey k ) throws IOException {
-		setPingTimer();
+	private boolean drain() throws IOException {
+		int end = mQueueHead + mQueueCount;
+		ByteBuffer a = mQueueViews[0];
+		ByteBuffer b = mQueueViews[1];
+		a.limit( Math.min( end, sQueueSize ) );
+		a.position( mQueueHead );
+		b.limit( Math.max( end - sQueueSize, 0 ) );
+		b.position( 0 );
 		
-		if( mSocket.write( mOutput ) < 0 ) {
-			mEngine.lostServerLink( this );
-			if(VpnNatEngine.sLog) Log.v("AziLink", "vpnlink::onwrite lost" );
-			return;
-		}
-		if( mOutput.remaining() == 0 ) {
-			if(VpnNatEngine.sLog) Log.v("AziLink", "vpnlink::onwrite cancelled write pause" );
-			mOutput.clear();
+		long n = mSocket.write( mQueueViews, 0, b.hasRemaining() ? 2 : 1 );
+		if( n < 0 ) throw new IOException( "VPN link closed" );
+		if( n > 0 ) mLastWrite = SystemClock.elapsedRealtime();
+		mQueueHead = (int)((mQueueHead + n) % sQueueSize);
+		mQueueCount -= (int) n;
+		if( mQueueCount == 0 ) mQueueHead = 0;
+		if( mPauseOutput && mQueueCount <= sQueueLow ) {
+			if(VpnNatEngine.sLog) Log.v("AziLink", "vpnlink::drain congestion cleared" );
 			mPauseOutput = false;
+			mEngine.vpnResume();
+		}
+		return mQueueCount == 0;
+	}
+	
+	/**
+	 * NIO indicates that a write will succeed.  Transmit whatever is queued to the host.
+	 */
+	public synchronized void onWrite( SelectionKey k ) throws IOException {
+		if( drain() ) {
+			if(VpnNatEngine.sLog) Log.v("AziLink", "vpnlink::onwrite queue drained" );
+			mWaitWrite = false;
 			k.interestOps( SelectionKey.OP_READ );
 		}
 	}
@@ -291,8 +396,8 @@ public class VpnLink extends SocketHandler {
 	void close() {
 		try {
 			if(VpnNatEngine.sLog) Log.v("AziLink", "vpnlink::close" );
-			mEngine.mTimers.killTimer(mTimerKeyPing, mPingCallback);
-			mEngine.mTimers.killTimer(mTimerKeyDie, mDieCallback);
+			mShard.mTimers.killTimer(mTimerPing);
+			mShard.mTimers.killTimer(mTimerDie);
 			mChannel.close();
 		} catch (IOException e) {			
 		}
@@ -18,11 +18,11 @@
 package org.lfx.azilink.net;
 
 import java.io.IOException;
-import java.net.Inet4Address;
-import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.util.Log;
 
@@ -33,24 +33,20 @@ import android.util.Log;
  *
  */
 public class VpnNatEngine implements TransferStatistics {
-	/** Select worker thread */
-	SelectThread mSelectThread = new SelectThread( this );
+	/** Select worker threads (shards).  Shard 0 owns the VPN link. */
+	SelectThread[] mShards = new SelectThread[] { new SelectThread( this, 0 ) };
 	/** Interface used to report VPN status changes */
 	VpnNatEngineNotify mNotify;
-	/** TCP NAT engine */
-	TcpEngine mTCP = new TcpEngine( this );
-	/** UDP NAT engine */
-	UdpEngine mUDP = new UdpEngine( this );
 	/** Transfer statistics for bytes sent */
 	long mBytesSent = 0;
 	/** Transfer statistics for bytes received */
 	long mBytesRecv = 0;
 	/** NIO link to the VPN (if any) */
-	VpnLink mVpnLink;
+	volatile VpnLink mVpnLink;
 	/** Maximum possible packet size from VPN (tcp/udp engines have separate limits!) */
 	int mPacketSize = 8192;
-	/** Queue of all timer events */
-	TimerQueue mTimers = new TimerQueue();
+	/** Maximum number of select worker threads */
+	static final int sMaxShards = 16;
 	/** Enable debug logging? */
 	static final boolean sLog = false;
 	/** Enable T-Mobile workaround? */
@@ -59,6 +55,34 @@ public class VpnNatEngine implements TransferStatistics {
 	boolean mPinger = true;
 	/** Timeout for the T-Mobile workaround */
 	int mTMobileWorkaroundTimeout = 1000;
+	/** Largest TCP window per connection and direction (bytes) */
+	int mTcpWindow = 256 * 1024;
+	/** Smallest and largest allowed TCP window (bytes) */
+	static final int sMinTcpWindow = 16 * 1024, sMaxTcpWindow = 8 * 1024 * 1024;
+	/** MTU of the tun device, sent to OpenVPN and used to size TCP segments */
+	int mTunMtu = 1500;
+	/** Smallest allowed tun MTU */
+	static final int sMinTunMtu = 576;
+	/** Use CUBIC (true) or Reno (false) for TCP data sent to the host */
+	boolean mCubic = true;
+	/** Pace TCP data sent to the host? */
+	boolean mPacing = false;
+	/** Memory shared by all TCP send and receive buffers (bytes) */
+	long mBufferBudget = 16L * 1024 * 1024;
+	/** Smallest and largest allowed buffer budget (MB) */
+	static final int sMinBufferBudget = 1, sMaxBufferBudget = 256;
+	/** Smallest buffer share a connection is cut down to, so it can still keep a few segments in flight */
+	static final int sMinBufferShare = 8 * 1024;
+	/** TCP connections whose windows are currently cut down by the budget */
+	AtomicInteger mThrottledFlows = new AtomicInteger();
+	/** Packets for the host dropped because the VPN output queue was full */
+	AtomicLong mVpnDropped = new AtomicLong();
+	/** Answer repeated DNS queries from mDnsCache? */
+	boolean mDnsCacheEnabled = true;
+	/** DNS answers shared by all shards */
+	DnsCache mDnsCache = new DnsCache();
+	/** DNS server to forward queries to instead of the phone's (0 to use the phone's) */
+	int mDnsServer = 0;
 	
 	public VpnNatEngine( VpnNatEngineNotify notify ) {
 		mNotify = notify;		
@@ -87,6 +111,108 @@ public class VpnNatEngine implements TransferStatistics {
 	public void setPinger(boolean active) {
 		mPinger = active;
 	}
+	
+	/**
+	 * Set the largest TCP window for each connection.  Windows over 64KB rely on window scaling,
+	 * and buffers start small and grow as the window fills.  Applies to new connections.
+	 * @param kb window size (KB)
+	 */
+	public void setTcpWindow(int kb) {
+		mTcpWindow = Math.max( sMinTcpWindow, Math.min( kb * 1024, sMaxTcpWindow ) );
+	}
+	
+	/**
+	 * Set the tun MTU that OpenVPN is told to use.  TCP advertises an MSS of MTU-40 and never
+	 * sends larger segments.  Applies to new VPN links.
+	 * @param mtu MTU (bytes)
+	 */
+	public void setTunMtu(int mtu) {
+		mTunMtu = Math.max( sMinTunMtu, Math.min( mtu, mPacketSize ) );
+	}
+	
+	/**
+	 * Choose the congestion control used for TCP data sent to the host.  Applies to new connections.
+	 * @param cubic use CUBIC if true, Reno if false
+	 */
+	public void setCubic(boolean cubic) {
+		mCubic = cubic;
+	}
+	
+	/**
+	 * Spread TCP data sent to the host over each RTT instead of bursting whole windows into the VPN
+	 * link.  Applies to new connections.
+	 * @param active whether to pace
+	 */
+	public void setPacing(boolean active) {
+		mPacing = active;
+	}
+	
+	/**
+	 * Set the memory budget for all TCP buffers.  Connections split it evenly between the buffers they
+	 * actually hold, so windows shrink as busy connections pile up and grow back as they finish.
+	 * @param mb budget (MB)
+	 */
+	public void setBufferBudget(int mb) {
+		mBufferBudget = (long) Math.max( sMinBufferBudget, Math.min( mb, sMaxBufferBudget ) ) * 1024 * 1024;
+	}
+	
+	/**
+	 * Turn the DNS answer cache on or off.
+	 * @param active whether repeated queries are answered locally
+	 */
+	public void setDnsCache(boolean active) {
+		mDnsCacheEnabled = active;
+	}
+	
+	/**
+	 * Forward DNS queries to a specific server instead of the phone's.
+	 * @param ip dotted IPv4 address of the server (empty or invalid to use the phone's)
+	 */
+	public void setDnsServer(String ip) {
+		mDnsServer = ip.length() == 0 ? 0 : parseIp( ip, 0 );
+	}
+	
+	/**
+	 * Server that DNS queries to the redirect address are forwarded to.
+	 * @return ip address of dns server
+	 */
+	int getDnsServer() {
+		int ip = mDnsServer;
+		return ip != 0 ? ip : getDnsIp();
+	}
+	
+	/**
+	 * Fair share of the buffer budget for one TCP buffer.  Idle connections hold no buffers, so only
+	 * connections with data queued are counted.
+	 * @return bytes per buffer
+	 */
+	int getBufferShare() {
+		long share = mBufferBudget / Math.max( BufferPool.sStream.getLent(), 1 );
+		return (int) Math.max( sMinBufferShare, Math.min( share, sMaxTcpWindow ) );
+	}
+	
+	/**
+	 * Build the congestion control for a new TCP connection.
+	 * @return congestion control
+	 */
+	CongestionControl newCongestionControl() {
+		if( mCubic ) return new CubicCongestionControl();
+		return new RenoCongestionControl();
+	}
+	
+	/**
+	 * Set the number of select worker threads.  Flows are hash-partitioned across the workers.
+	 * Only takes effect before start() is called.
+	 * @param count number of workers (0 = one per CPU)
+	 */
+	public void setWorkerCount(int count) {
+		if( count <= 0 ) count = Runtime.getRuntime().availableProcessors();
+		count = Math.max( 1, Math.min( count, sMaxShards ) );
+		mShards = new SelectThread[ count ];
+		for( int i=0 ; i < count ; i++ ) {
+			mShards[i] = new SelectThread( this, i );
+		}
+	}
 
 	/**
 	 * Figure out what IP address to redirect DNS packets to.  By default, we read
@@ -97,18 +223,33 @@ public class VpnNatEngine implements TransferStatistics {
 	static public int getDnsIp() {
 		String ip = org.lfx.azilink.Reflection.getDNS();
 		if( ip == "" ) ip = "4.2.2.2";
-		try {
-			Inet4Address addr = (Inet4Address) Inet4Address.getByName(ip);
-			byte[] v = addr.getAddress();
-			int returnv;
-			returnv  = ((v[0]&0xFF) << 24);		// would it really have fucking killed them to include unsigned
-			returnv |= ((v[1]&0xFF) << 16);
-			returnv |= ((v[2]&0xFF) << 8);
-			returnv |= (v[3]&0xFF);
-			return returnv;			
-		} catch (UnknownHostException e) {
-			return 0x04020202;		// 4.2.2.2 is a public dns			
+		return parseIp( ip, 0x04020202 );		// 4.2.2.2 is a public dns
+	}
+	
+	/**
+	 * Convert a dotted IPv4 address (a.b.c.d) to an int.  Anything else, including IPv6 addresses
+	 * and host names, gets the fallback; nothing is ever looked up.
+	 * @param ip address
+	 * @param fallback value to return if it can't be parsed
+	 * @return ip address
+	 */
+	static int parseIp( String ip, int fallback ) {
+		String[] parts = ip.trim().split( "\\.", -1 );
+		if( parts.length != 4 ) return fallback;
+		int returnv = 0;
+		for( int i=0 ; i < 4 ; i++ ) {
+			String p = parts[i];
+			if( p.length() == 0 || p.length() > 3 ) return fallback;
+			int v = 0;
+			for( int j=0 ; j < p.length() ; j++ ) {
+				char c = p.charAt(j);
+				if( c < '0' || c > '9' ) return fallback;
+				v = v * 10 + (c - '0');
+			}
+			if( v > 255 ) return fallback;
+			returnv = (returnv << 8) | v;
 		}
+		return returnv;
 	}
 	
 	/**
@@ -117,24 +258,30 @@ public class VpnNatEngine implements TransferStatistics {
 	 */
 	public void start() throws IOException {
 		mVpnLink = null;
-		mSelectThread.start();
+		for( int i=0 ; i < mShards.length ; i++ ) {
+			mShards[i].start();
+		}
 	}
 	
 	/**
-	 * Terminate the select worker thread and destroy all the NAT tables
+	 * Terminate the select worker threads and destroy all the NAT tables
 	 * @throws InterruptedException
 	 */
 	public void stop() throws InterruptedException {
-		mSelectThread.stop();
-		mTCP.closeAll();
-		mUDP.closeAll();
+		for( int i=0 ; i < mShards.length ; i++ ) {
+			mShards[i].stop();
+		}
+		for( int i=0 ; i < mShards.length ; i++ ) {
+			mShards[i].mTCP.closeAll();
+			mShards[i].mUDP.closeAll();
+		}
 		mVpnLink = null;
 	}
 	
 	/**
 	 * Reset the byte counters
 	 */
-	public void resetCounters() {
+	public synchronized void resetCounters() {
 		mBytesSent = 0;
 		mBytesRecv = 0;
 	}
@@ -143,7 +290,7 @@ public class VpnNatEngine implements TransferStatistics {
 	 * Get the number of bytes sent since last reset
 	 * @return bytes sent
 	 */
-	public long getBytesSent() {
+	public synchronized long getBytesSent() {
 		return mBytesSent;
 	}
 	
@@ -151,16 +298,132 @@ public class VpnNatEngine implements TransferStatistics {
 	 * Get the number of bytes received since last reset
 	 * @return bytes received
 	 */
-	public long getBytesRecv() {
+	public synchronized long getBytesRecv() {
 		return mBytesRecv;		
 	}
 	
+	/**
+	 * Get the number of packet buffers that were reused from the pool
+	 * @return pool hits
+	 */
+	public long getPoolHits() {
+		return PacketPool.sMtu.getHits() + PacketPool.sLarge.getHits() + PacketPool.sJumbo.getHits();
+	}
+	
+	/**
+	 * Get the number of packet buffers that had to be allocated
+	 * @return pool misses
+	 */
+	public long getPoolMisses() {
+		return PacketPool.sMtu.getMisses() + PacketPool.sLarge.getMisses() + PacketPool.sJumbo.getMisses();
+	}
+	
+	/**
+	 * Get the memory held by TCP send and receive buffers
+	 * @return bytes lent to connections
+	 */
+	public long getBufferMemory() {
+		return BufferPool.sStream.getInUse();
+	}
+	
+	/**
+	 * Get the number of TCP connections whose windows are being held down by the buffer budget
+	 * @return throttled connections
+	 */
+	public int getThrottledFlows() {
+		return mThrottledFlows.get();
+	}
+	
+	/**
+	 * Get the number of DNS queries answered from the cache
+	 * @return cache hits
+	 */
+	public long getDnsHits() {
+		return mDnsCache.getHits();
+	}
+	
+	/**
+	 * Get the number of cacheable DNS queries that had to be sent upstream
+	 * @return cache misses
+	 */
+	public long getDnsMisses() {
+		return mDnsCache.getMisses();
+	}
+	
+	/**
+	 * Get the upstream round trip time that DNS cache hits saved
+	 * @return time saved (ms)
+	 */
+	public long getDnsSaved() {
+		return mDnsCache.getSaved();
+	}
+	
+	/**
+	 * Get the memory kept on the stream buffer free lists for reuse
+	 * @return bytes pooled
+	 */
+	public long getBufferPooled() {
+		return BufferPool.sStream.getPooled();
+	}
+	
+	/**
+	 * Get the number of packets for the host that were dropped because the VPN link's output
+	 * queue was full
+	 * @return dropped packets
+	 */
+	public long getVpnDropped() {
+		return mVpnDropped.get();
+	}
+	
 	/**
 	 * Get the size of the TCP NAT table
 	 * @return TCP entries
 	 */
 	public int getTcpSize() {
-		return mTCP.mNat.size();
+		int size = 0;
+		for( int i=0 ; i < mShards.length ; i++ ) {
+			size += mShards[i].mTCP.mNat.size();
+		}
+		return size;
+	}
+	
+	/**
+	 * Get the number of bytes retransmitted to the host by closed TCP links
+	 * @return retransmitted bytes
+	 */
+	public long getTcpRetransmitted() {
+		long total = 0;
+		for( int i=0 ; i < mShards.length ; i++ ) {
+			total += mShards[i].mTCP.mRetransmitted;
+		}
+		return total;
+	}
+	
+	/**
+	 * Get the lowest round trip time seen by any closed TCP link
+	 * @return RTT (ms), or -1 if none has been measured
+	 */
+	public int getTcpRttMin() {
+		int min = -1;
+		for( int i=0 ; i < mShards.length ; i++ ) {
+			int m = mShards[i].mTCP.mRttMin;
+			if( m >= 0 && (min < 0 || m < min) ) min = m;
+		}
+		return min;
+	}
+	
+	/**
+	 * Get the mean smoothed round trip time of closed TCP links
+	 * @return RTT (ms), or -1 if none has been measured
+	 */
+	public int getTcpRttAvg() {
+		long sum = 0;
+		long count = 0;
+		for( int i=0 ; i < mShards.length ; i++ ) {
+			sum += mShards[i].mTCP.mRttSum;
+			count += mShards[i].mTCP.mRttCount;
+		}
+		return count == 0 ? -1 : (int)(sum / count);
 	}
 	
 	/**
@@ -168,7 +431,25 @@ public class VpnNatEngine implements TransferStatistics {
 	 * @return UDP entries
 	 */
 	public int getUdpSize() {
-		return mUDP.mNat.size();
+		int size = 0;
+		for( int i=0 ; i < mShards.length ; i++ ) {
+			size += mShards[i].mUDP.mNat.size();
+		}
+		return size;
+	}
+	
+	/**
+	 * Get the average number of slots a lookup in the TCP and UDP NAT tables examines
+	 * @return mean probe length (1.0 means no collisions, 0 if the tables are empty)
+	 */
+	public double getFlowProbes() {
+		long probes = 0;
+		long size = 0;
+		for( int i=0 ; i < mShards.length ; i++ ) {
+			probes += mShards[i].mTCP.mNat.getProbes() + mShards[i].mUDP.mNat.getProbes();
+			size += mShards[i].mTCP.mNat.size() + mShards[i].mUDP.mNat.size();
+		}
+		return size == 0 ? 0 : (double) probes / size;
 	}
 	
 	/**
@@ -192,14 +473,18 @@ public class VpnNatEngine implements TransferStatistics {
 	
 	/**
 	 * Server link has been lost.  Close the link and, if enabled, close all the TCP sockets.
+	 * Must be called from shard 0.
 	 * @param link vpn link
 	 */
 	void lostServerLink( VpnLink link ) {		
+		if( mVpnLink != link ) return;			// already torn down
 		link.close();
 		boolean closeAll = mNotify.onLinkLost();
 		mVpnLink = null;
 		if( closeAll ) {
-			mTCP.closeAll();
+			for( int i=0 ; i < mShards.length ; i++ ) {
+				mShards[i].post( mShards[i].mCloseAllTcp );
+			}
 		}
 	}
 	
@@ -212,52 +497,135 @@ public class VpnNatEngine implements TransferStatistics {
 	}
 	
 	/**
-	 * New incoming data from the VPN.  Transmit it to the correct protocol engine.
-	 * @param d single ip packet
+	 * New incoming data from the VPN.  Hand it to the shard that owns the flow.
+	 * Called on shard 0.  The packet is a view into the link's receive buffer, so it's only
+	 * copied if it has to cross over to another shard.
+	 * @param raw buffer holding a single ip packet (heap buffer, array offset 0)
+	 * @param off offset of the packet within raw
+	 * @param len packet length
+	 */
+	void vpnRead( ByteBuffer raw, int off, int len ) {
+		if( mShards.length == 1 ) {
+			dispatch( mShards[0], raw, off, len );
+			return;
+		}
+		SelectThread shard = mShards[ shardFor( raw.array(), off, len ) ];
+		if( shard.mIndex == 0 ) {
+			dispatch( shard, raw, off, len );
+		} else {
+			ByteBuffer copy = len <= PacketPool.sLarge.mSize ? PacketPool.sLarge.get() : ByteBuffer.allocate( len );
+			copy.put( raw.array(), off, len );
+			copy.flip();
+			shard.postPacket( copy );
+		}
+	}
+	
+	/**
+	 * Figure out which shard owns the flow a packet belongs to.  TCP and UDP are hashed on
+	 * both addresses and ports; everything else is hashed on the addresses only.
+	 * @param d buffer holding a single ip packet
+	 * @param off offset of the packet within d
+	 * @param len packet length
+	 * @return shard index
 	 */
-	void vpnRead( byte[] d ) {
-		if( d.length < 20 ) {
+	int shardFor( byte[] d, int off, int len ) {
+		if( len < 20 ) return 0;
+		int h = ((d[off+12]&0xFF) << 24) | ((d[off+13]&0xFF) << 16) | ((d[off+14]&0xFF) << 8) | (d[off+15]&0xFF);
+		h = h*31 + (((d[off+16]&0xFF) << 24) | ((d[off+17]&0xFF) << 16) | ((d[off+18]&0xFF) << 8) | (d[off+19]&0xFF));
+		int protocol = d[off+9] & 0xFF;
+		int ports = (d[off] & 0x0F) * 4;
+		if( (protocol == 6 || protocol == 17) && len >= ports + 4 ) {
+			ports += off;
+			h = h*31 + (((d[ports]&0xFF) << 24) | ((d[ports+1]&0xFF) << 16) | ((d[ports+2]&0xFF) << 8) | (d[ports+3]&0xFF));
+		}
+		// Finalizer from MurmurHash3 so that all input bits affect the low bits
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return (h & 0x7FFFFFFF) % mShards.length;
+	}
+	
+	/**
+	 * Transmit a packet from the VPN to the correct protocol engine.  Called on the owning shard.
+	 * The buffer is passed along so the engines can point their packet views at it without allocating.
+	 * @param shard shard that owns the flow
+	 * @param raw buffer holding a single ip packet (heap buffer, array offset 0)
+	 * @param off offset of the packet within raw
+	 * @param len packet length
+	 */
+	void dispatch( SelectThread shard, ByteBuffer raw, int off, int len ) {
+		byte[] d = raw.array();
+		if( len < 20 ) {
 			if(VpnNatEngine.sLog) Log.v( "AziLink", "Packet under minimum length" );
 			return;
 		}
 		
-		ByteBuffer bb = ByteBuffer.wrap( d );
-		if( (bb.get(0) & 0xF0) != 0x40 ) {
+		if( (d[off] & 0xF0) != 0x40 ) {
 			if(VpnNatEngine.sLog) Log.v( "AziLink", "Incoming packet not IPv4" );
 			return;
 		}
-		int headerLength = (((int) bb.get(0)) & 0x0F) * 4; 
+		int headerLength = (((int) d[off]) & 0x0F) * 4; 
 		if( headerLength < 20 ) {
 			if(VpnNatEngine.sLog) Log.v( "AziLink", "Header under minimum length" );
 			return;
 		}		
 
-		int protocol = ((int) bb.get( 9 )) & 0xFF;
+		int protocol = ((int) d[off+9]) & 0xFF;
 		if( protocol == 6 ) {
-			mTCP.readRawPacket( d );
+			shard.mTCP.readRawPacket( raw, off, len );
 		} else if( protocol == 17 ) {
-			mUDP.readRawPacket( d );
+			shard.mUDP.readRawPacket( raw, off, len );
 		} else if( protocol == 1 ) {
 			// send ICMP to UDP (will be rewritten)
-			mUDP.readRawPacket(d);
+			shard.mUDP.readRawPacket( raw, off, len );
 		} else {
 			if(VpnNatEngine.sLog) Log.v("AziLink", "IP saw unknown protocol " + protocol );
 		}
 	}
 	
 	boolean isVpnWriteOk() {
-		if( mVpnLink != null ) {
-			return !mVpnLink.mPauseOutput;
+		VpnLink link = mVpnLink;
+		if( link != null ) {
+			return !link.mPauseOutput;
 		} else return false;
 	}
 	
+	/**
+	 * Send a packet to the host.  May be called from any shard.
+	 * @param d packet
+	 * @param len packet length
+	 */
 	void vpnWrite( byte[] d, short len ) {
-		if( mVpnLink != null ) {
-			mVpnLink.write( d, len );
+		VpnLink link = mVpnLink;
+		if( link != null ) {
+			link.write( d, len );
+		}
+	}
+	
+	/**
+	 * The VPN output queue drained below its low watermark.  Have every shard restart the TCP
+	 * links that stopped sending while it was congested.
+	 */
+	void vpnResume() {
+		SelectThread[] shards = mShards;
+		for( int i=0 ; i < shards.length ; i++ ) {
+			shards[i].postLater( shards[i].mTCP.mResume );
+		}
+	}
+	
+	/**
+	 * Push any queued packets out to the host.  Called by every shard before it blocks.
+	 */
+	void vpnFlush() {
+		VpnLink link = mVpnLink;
+		if( link != null ) {
+			link.flush();
 		}
 	}
 
-	public void addBytes(int recv, int sent) {
+	public synchronized void addBytes(int recv, int sent) {
 		mBytesSent += sent;
 		mBytesRecv += recv;
 	}	